@@ -1,77 +1,206 @@
 package com.phonegap;
 
 
-import java.util.List;
-
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.content.Context;
-import android.webkit.WebView;
 
-public class AccelListener implements SensorEventListener{
+/*
+ * Accelerometer readings are reduced natively before they go anywhere near the bridge.
+ *
+ * The hardware rate is picked from the requested interval.  Every raw reading is folded into
+ * the current output sample (average, decimate or peak-hold), and finished samples sit in a
+ * primitive ring until a whole batch is ready to go out with the next SensorHub packet.
+ */
+
+public class AccelListener implements SensorHub.Subscriber{
+
+	/*
+	 * How raw readings inside one interval become one output sample
+	 */
+	public static final int MODE_AVERAGE = 0;
+	public static final int MODE_DECIMATE = 1;
+	public static final int MODE_PEAK = 2;
 
-	WebView mAppView;
-	Context mCtx;
+	private static final int CAPACITY = 256;
+
+	SensorHub mHub;
 	String mKey;
-	Sensor mSensor;	
 	int mTime = 10000;
+	int mMode = MODE_AVERAGE;
+	int mBatch = 1;
 	boolean started = false;
-	
-	private SensorManager sensorManager;
-	
-	private long lastUpdate = -1;
-	
-	public AccelListener(Context ctx, WebView appView)
+
+	/*
+	 * Finished output samples, x/y/z interleaved, and their timestamps in ms
+	 */
+	private float[] samples = new float[CAPACITY * 3];
+	private long[] stamps = new long[CAPACITY];
+	private int first = 0;
+	private int count = 0;
+
+	/*
+	 * The output sample that's still being built
+	 */
+	private long windowStart = -1;
+	private float accX, accY, accZ;
+	private int accN = 0;
+
+	/*
+	 * Set while stopping, so the last partial batch goes out too
+	 */
+	private boolean flushOnStop = false;
+
+	public AccelListener(SensorHub hub)
 	{
-		mCtx = ctx;
-		mAppView = appView;		
-		sensorManager = (SensorManager) mCtx.getSystemService(Context.SENSOR_SERVICE);
-		
+		mHub = hub;
 	}
-	
+
 	public void start(int time)
 	{
-		mTime = time;
-		List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_ACCELEROMETER);
-		if (list.size() > 0)
+		synchronized (mHub)
 		{
-			this.mSensor = list.get(0);
-			this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_NORMAL);
+			mTime = time;
+			reset();
+			started = mHub.start(Sensor.TYPE_ACCELEROMETER, this, mTime);
 		}
-		else
+		if (!started)
 		{
 			// Call fail
 		}
 	}
-	
+
 	public void stop()
 	{
-		if(started)
-			sensorManager.unregisterListener(this);
+		synchronized (mHub)
+		{
+			if(started)
+			{
+				mHub.stop(Sensor.TYPE_ACCELEROMETER, this);
+				// Whatever is left over still has to go out
+				finishSample(windowStart);
+				flushOnStop = true;
+				mHub.flush(this);
+				started = false;
+			}
+		}
+	}
+
+	/**
+	 * Set how readings are reduced and how many samples go to Javascript at a time.
+	 * Takes effect on the next sample.
+	 */
+	public void configure(int mode, int batch)
+	{
+		// onSample runs under the hub's lock, so a reading never sees half a change
+		synchronized (mHub)
+		{
+			if (mode >= MODE_AVERAGE && mode <= MODE_PEAK)
+				mMode = mode;
+			if (batch > 0)
+				mBatch = Math.min(batch, CAPACITY);
+		}
 	}
-	
-	
 
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
-		
+	private void reset()
+	{
+		first = 0;
+		count = 0;
+		windowStart = -1;
+		accN = 0;
 	}
 
-	public void onSensorChanged(SensorEvent event) {		
-		if (event.sensor.getType() != Sensor.TYPE_ACCELEROMETER)
+	/*
+	 * The hub's timestamps come from the sensor events, so they don't jump when the wall
+	 * clock is changed
+	 */
+	public void onSample(int type, long time, float[] values) {
+		if (windowStart == -1)
+			windowStart = time;
+		else if (time - windowStart >= mTime)
+		{
+			finishSample(windowStart);
+			windowStart = time;
+		}
+		accumulate(values[0], values[1], values[2]);
+	}
+
+	private void accumulate(float x, float y, float z)
+	{
+		switch (mMode)
+		{
+			case MODE_AVERAGE:
+				if (accN == 0)
+				{
+					accX = x; accY = y; accZ = z;
+				}
+				else
+				{
+					accX += x; accY += y; accZ += z;
+				}
+				break;
+			case MODE_DECIMATE:
+				// Only the first reading of each interval survives
+				if (accN == 0)
+				{
+					accX = x; accY = y; accZ = z;
+				}
+				break;
+			case MODE_PEAK:
+				// Hold the largest magnitude seen on each axis, keeping its sign
+				if (accN == 0 || Math.abs(x) > Math.abs(accX)) accX = x;
+				if (accN == 0 || Math.abs(y) > Math.abs(accY)) accY = y;
+				if (accN == 0 || Math.abs(z) > Math.abs(accZ)) accZ = z;
+				break;
+		}
+		accN++;
+	}
+
+	private void finishSample(long time)
+	{
+		if (accN == 0)
 			return;
-		long curTime = System.currentTimeMillis();
-		if (lastUpdate == -1 || (curTime - lastUpdate) > mTime) {		
-			lastUpdate = curTime;
-				
-			float x = event.values[0];
-			float y = event.values[1];
-			float z = event.values[2];
-			mAppView.loadUrl("javascript:gotAccel(" + x +  ", " + y + "," + z + " )");
-		}		
+		if (mMode == MODE_AVERAGE)
+		{
+			accX /= accN; accY /= accN; accZ /= accN;
+		}
+		accN = 0;
+
+		// When full, the oldest sample gets overwritten
+		if (count == CAPACITY)
+		{
+			first = (first + 1) % CAPACITY;
+			count--;
+		}
+		int slot = (first + count) % CAPACITY;
+		samples[slot * 3] = accX;
+		samples[slot * 3 + 1] = accY;
+		samples[slot * 3 + 2] = accZ;
+		stamps[slot] = time;
+		count++;
 	}
-	
-	
+
+	/*
+	 * Once a batch is full, send everything in the ring as one flat [x, y, z, t, ...] array
+	 */
+	public boolean appendPacket(StringBuilder out)
+	{
+		if (count == 0 || (count < mBatch && !flushOnStop))
+			return false;
+		flushOnStop = false;
+		out.append("gotAccelBatch([");
+		for (int i = 0; i < count; i++)
+		{
+			int slot = (first + i) % CAPACITY;
+			if (i > 0)
+				out.append(',');
+			out.append(samples[slot * 3]).append(',')
+				.append(samples[slot * 3 + 1]).append(',')
+				.append(samples[slot * 3 + 2]).append(',')
+				.append(stamps[slot]);
+		}
+		out.append("])");
+		first = 0;
+		count = 0;
+		return true;
+	}
+
 }
@@ -0,0 +1,375 @@
+package com.phonegap;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Writes files on a background thread, so the page never waits on the disk.
+ *
+ * Writes are queued per file and done in order.  Appends that queue up behind each other are
+ * merged into one write, and the file stays open between them, so an app that logs a line at
+ * a time costs one open and a handful of writes instead of one open per line.
+ *
+ * The page hears about finished writes in batches: every pass of the writer sends one
+ * navigator.file.writesDone(done, failed) with the ids of everything it got through.
+ */
+
+public class AsyncFileWriter {
+
+	private static final String LOG_TAG = "AsyncFileWriter";
+
+	/*
+	 * When to make the data durable with fsync
+	 */
+	public static final int SYNC_NONE = 0;
+	public static final int SYNC_ON_CLOSE = 1;
+	public static final int SYNC_INTERVAL = 2;
+
+	// Files nobody has written to for this long get closed
+	private static final int IDLE_CLOSE = 2000;
+
+	/*
+	 * A queued write, or several appends merged together
+	 */
+	private static class Write
+	{
+		boolean append;
+		StringBuilder data;
+		ArrayList<Integer> ids = new ArrayList<Integer>(1);
+	}
+
+	/*
+	 * Everything we know about one file
+	 */
+	private static class Target
+	{
+		String path;
+		LinkedList<Write> queue = new LinkedList<Write>();
+		FileOutputStream out;
+		long lastWrite;
+		long lastSync;
+		boolean dirty;
+		boolean closeRequested;
+	}
+
+	private BridgeQueue mQueue;
+	private HashMap<String, Target> targets = new HashMap<String, Target>();
+	private Thread worker;
+	private int nextId = 1;
+
+	private volatile int syncPolicy = SYNC_ON_CLOSE;
+	private volatile int syncInterval = 1000;
+
+	private long writes = 0;
+	private long merged = 0;
+	private long diskWrites = 0;
+	private long syncs = 0;
+	private long failures = 0;
+
+	AsyncFileWriter(BridgeQueue queue)
+	{
+		mQueue = queue;
+	}
+
+	/**
+	 * Queue a write.
+	 *
+	 * @param append	add to the end of the file instead of replacing it
+	 * @return the id that will show up in writesDone
+	 */
+	public synchronized int write(String path, String data, boolean append)
+	{
+		int id = nextId++;
+		writes++;
+		Target t = targets.get(path);
+		if (t == null)
+		{
+			t = new Target();
+			t.path = path;
+			targets.put(path, t);
+		}
+		t.closeRequested = false;
+
+		Write last = t.queue.isEmpty() ? null : t.queue.getLast();
+		if (append && last != null && last.append)
+		{
+			last.data.append(data);
+			last.ids.add(id);
+			merged++;
+		}
+		else
+		{
+			Write w = new Write();
+			w.append = append;
+			w.data = new StringBuilder(data);
+			w.ids.add(id);
+			t.queue.add(w);
+		}
+		wake();
+		return id;
+	}
+
+	/**
+	 * Close a file once everything queued for it has been written
+	 */
+	public synchronized void close(String path)
+	{
+		Target t = targets.get(path);
+		if (t != null)
+		{
+			t.closeRequested = true;
+			wake();
+		}
+	}
+
+	/**
+	 * Write out everything that's queued and close every file.  Blocks until it's done, so
+	 * it's meant for shutting down.
+	 */
+	public void closeAll()
+	{
+		Thread w;
+		synchronized (this)
+		{
+			for (Target t : targets.values())
+				t.closeRequested = true;
+			w = worker;
+			notifyAll();
+		}
+		if (w != null)
+		{
+			try {
+				w.join(IDLE_CLOSE);
+			} catch (InterruptedException e) {
+				// Give up waiting
+			}
+		}
+	}
+
+	/**
+	 * @param policy	SYNC_NONE, SYNC_ON_CLOSE or SYNC_INTERVAL
+	 * @param interval	for SYNC_INTERVAL, how often in milliseconds open files are synced
+	 */
+	public synchronized void setSyncPolicy(int policy, int interval)
+	{
+		if (policy >= SYNC_NONE && policy <= SYNC_INTERVAL)
+			syncPolicy = policy;
+		if (interval > 0)
+			syncInterval = interval;
+		notifyAll();
+	}
+
+	public synchronized String getStats()
+	{
+		int queued = 0;
+		int open = 0;
+		for (Target t : targets.values())
+		{
+			queued += t.queue.size();
+			if (t.out != null)
+				open++;
+		}
+		return "{\"writes\":" + writes +
+			",\"merged\":" + merged +
+			",\"diskWrites\":" + diskWrites +
+			",\"syncs\":" + syncs +
+			",\"failures\":" + failures +
+			",\"queued\":" + queued +
+			",\"open\":" + open + "}";
+	}
+
+	private void wake()
+	{
+		if (worker == null)
+		{
+			worker = new Thread(new Runnable() {
+				public void run()
+				{
+					loop();
+				}
+			}, LOG_TAG);
+			worker.start();
+		}
+		notifyAll();
+	}
+
+	/*
+	 * The writer thread.  It sleeps until there's something to write, a sync is due or a file
+	 * has been idle long enough to close, and quits once no file is left open.
+	 */
+	private void loop()
+	{
+		ArrayList<Integer> done = new ArrayList<Integer>();
+		ArrayList<Integer> failed = new ArrayList<Integer>();
+		ArrayList<Target> work = new ArrayList<Target>();
+		ArrayList<Write> batch = new ArrayList<Write>();
+
+		while (true)
+		{
+			long now;
+			synchronized (this)
+			{
+				while (true)
+				{
+					now = SystemClock.uptimeMillis();
+					long wait = nextDeadline(now);
+					if (wait == 0)
+						break;
+					if (wait < 0)
+					{
+						worker = null;
+						return;
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						worker = null;
+						return;
+					}
+				}
+				work.clear();
+				work.addAll(targets.values());
+			}
+
+			for (int i = 0; i < work.size(); i++)
+			{
+				Target t = work.get(i);
+				synchronized (this)
+				{
+					batch.clear();
+					batch.addAll(t.queue);
+					t.queue.clear();
+				}
+				for (int j = 0; j < batch.size(); j++)
+				{
+					Write w = batch.get(j);
+					if (perform(t, w))
+						done.addAll(w.ids);
+					else
+						failed.addAll(w.ids);
+				}
+				housekeep(t, now);
+			}
+
+			if (!done.isEmpty() || !failed.isEmpty())
+			{
+				mQueue.enqueue("navigator.file.writesDone(" + done + "," + failed + ")");
+				done.clear();
+				failed.clear();
+			}
+		}
+	}
+
+	/*
+	 * How long the writer can sleep for.  0 means there's something to do now, and -1 means
+	 * every file is closed and the thread can go away.
+	 */
+	private long nextDeadline(long now)
+	{
+		long wait = Long.MAX_VALUE;
+		for (Iterator<Target> it = targets.values().iterator(); it.hasNext(); )
+		{
+			Target t = it.next();
+			if (!t.queue.isEmpty())
+				return 0;
+			if (t.out == null)
+			{
+				it.remove();
+				continue;
+			}
+			if (t.closeRequested)
+				return 0;
+			wait = Math.min(wait, t.lastWrite + IDLE_CLOSE - now);
+			if (syncPolicy == SYNC_INTERVAL && t.dirty)
+				wait = Math.min(wait, t.lastSync + syncInterval - now);
+		}
+		if (targets.isEmpty())
+			return -1;
+		return Math.max(wait, 0);
+	}
+
+	private boolean perform(Target t, Write w)
+	{
+		try {
+			// A write that replaces the file always needs a fresh stream
+			if (!w.append && t.out != null)
+				closeTarget(t);
+			if (t.out == null)
+			{
+				t.out = new FileOutputStream(t.path, w.append);
+				t.lastSync = SystemClock.uptimeMillis();
+			}
+			t.out.write(w.data.toString().getBytes("UTF-8"));
+			t.dirty = true;
+			t.lastWrite = SystemClock.uptimeMillis();
+			synchronized (this)
+			{
+				diskWrites++;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.d(LOG_TAG, t.path + ": " + e.getMessage());
+			closeTarget(t);
+			synchronized (this)
+			{
+				failures++;
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Sync and close files as the policy says
+	 */
+	private void housekeep(Target t, long now)
+	{
+		if (t.out == null)
+			return;
+		if (syncPolicy == SYNC_INTERVAL && t.dirty && now - t.lastSync >= syncInterval)
+			sync(t);
+		boolean idle;
+		synchronized (this)
+		{
+			idle = t.queue.isEmpty() && (t.closeRequested || now - t.lastWrite >= IDLE_CLOSE);
+		}
+		if (idle)
+			closeTarget(t);
+	}
+
+	private void sync(Target t)
+	{
+		try {
+			t.out.getFD().sync();
+			synchronized (this)
+			{
+				syncs++;
+			}
+		} catch (IOException e) {
+			Log.d(LOG_TAG, t.path + ": sync failed, " + e.getMessage());
+		}
+		t.dirty = false;
+		t.lastSync = SystemClock.uptimeMillis();
+	}
+
+	private void closeTarget(Target t)
+	{
+		if (t.out == null)
+			return;
+		if (t.dirty && syncPolicy != SYNC_NONE)
+			sync(t);
+		try {
+			t.out.close();
+		} catch (IOException e) {
+			Log.d(LOG_TAG, t.path + ": close failed, " + e.getMessage());
+		}
+		t.out = null;
+		t.dirty = false;
+	}
+}
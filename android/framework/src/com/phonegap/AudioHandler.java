@@ -2,6 +2,9 @@ package com.phonegap;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 
 import android.content.Context;
 import android.media.AudioManager;
@@ -13,18 +16,45 @@ import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.util.Log;
 
-public class AudioHandler implements OnCompletionListener, OnPreparedListener, OnErrorListener {
+/*
+ * Sounds are played on tracks the page names, and any number of tracks can play at once, so a
+ * game can have music going and fire off effects over the top.  A track keeps its sound loaded
+ * after it finishes, and the page can load one ahead of time with preload, so playing it costs
+ * nothing but start().
+ *
+ * MediaPlayers are expensive to make, so released ones are reset and pooled for the next sound.
+ * The length of every sound that's been loaded is remembered, so getDuration doesn't load it
+ * again.  What happens to a track is pushed to Media.onStatus: "prepared" with its length,
+ * "ended", "error", and "evicted" when it was unloaded to make room for another.
+ */
+
+public class AudioHandler {
+	private static final String LOG_TAG = "AudioHandler";
+	
+	private static final int MAX_TRACKS = 8;
+	private static final int POOL_SIZE = 4;
+	
 	private MediaRecorder recorder;
 	private boolean isRecording = false;
-	MediaPlayer mPlayer;
-	private boolean isPlaying = false;
 	private String recording;
 	private String saveFile;
 	private Context mCtx;
+	private BridgeQueue mQueue;
+	
+	// Least recently used first, that's the first to go if there are too many
+	private LinkedHashMap<String, Track> tracks = new LinkedHashMap<String, Track>(16, 0.75f, true);
+	private LinkedList<MediaPlayer> idle = new LinkedList<MediaPlayer>();
+	private HashMap<String, Integer> durations = new HashMap<String, Integer>();
+	
+	private long created = 0;
+	private long reused = 0;
+	private long plays = 0;
+	private long durationHits = 0;
 	
-	public AudioHandler(String file, Context ctx) {
+	public AudioHandler(String file, Context ctx, BridgeQueue queue) {
 		this.recording = file;
 		this.mCtx = ctx;
+		this.mQueue = queue;
 	}	
 	
 	protected void startRecording(String file){
@@ -71,52 +101,174 @@ public class AudioHandler implements OnCompletionListener, OnPreparedListener, O
 		}
 	}	
 	
-	protected void startPlaying(String file) {
-		if (isPlaying==false) {
-			try {
-				mPlayer = new MediaPlayer();
-				isPlaying=true;
-				Log.d("Audio startPlaying", "audio: " + file);
-				if (isStreaming(file))
-				{
-					Log.d("AudioStartPlaying", "Streaming");
-					// Streaming prepare async
-					mPlayer.setDataSource(file);
-					mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);  
-					mPlayer.prepareAsync();
-				} else {
-					Log.d("AudioStartPlaying", "File");
-					// Not streaming prepare synchronous, abstract base directory
-					mPlayer.setDataSource("/sdcard/" + file);
-					mPlayer.prepare();
+	/*
+	 * The old single player API plays on this track
+	 */
+	private static final String LEGACY = "";
+	
+	/*
+	 * One sound the page is using, and the player it's loaded into
+	 */
+	private class Track implements OnPreparedListener, OnCompletionListener, OnErrorListener
+	{
+		String id;
+		String file;
+		MediaPlayer player;
+		boolean prepared = false;
+		boolean startWhenPrepared = false;
+		
+		public void onPrepared(MediaPlayer mp) {
+			int duration;
+			synchronized (AudioHandler.this) {
+				// It was released before it finished preparing
+				if (player != mp)
+					return;
+				prepared = true;
+				duration = mp.getDuration();
+				if (duration > 0)
+					durations.put(file, duration);
+				if (startWhenPrepared) {
+					startWhenPrepared = false;
+					mp.start();
 				}
-				mPlayer.setOnPreparedListener(this);
-			} catch (Exception e) 
-			{ 
-				e.printStackTrace(); 
 			}
+			status(id, "prepared", duration);
 		}
+		
+		public void onCompletion(MediaPlayer mp) {
+			// It stays prepared, so playing it again starts straight away
+			status(id, "ended", 0);
+		}
+		
+		public boolean onError(MediaPlayer mp, int what, int extra) {
+			Log.e(LOG_TAG, id + ": error " + what + " " + extra);
+			synchronized (AudioHandler.this) {
+				if (player != mp)
+					return true;
+				tracks.remove(id);
+				recycle(this);
+			}
+			status(id, "error", what);
+			return true;
+		}
+	}
+	
+	/**
+	 * Load a sound into a track without playing it, so play() can start it with no delay.
+	 * Files and streams are both prepared in the background.
+	 */
+	protected synchronized boolean preload(String id, String file) {
+		return track(id, file) != null;
+	}
+	
+	/**
+	 * Play a sound on a track, loading it first if it isn't already.  Tracks play at the same
+	 * time as each other.  Playing a track that's already playing starts it again from the
+	 * beginning, which is what a sound effect wants.
+	 */
+	protected synchronized boolean play(String id, String file) {
+		Track t = track(id, file);
+		if (t == null)
+			return false;
+		plays++;
+		if (!t.prepared)
+			t.startWhenPrepared = true;
+		else if (t.player.isPlaying())
+			t.player.seekTo(0);
+		else
+			t.player.start();
+		return true;
+	}
+	
+	protected synchronized void pause(String id) {
+		Track t = tracks.get(id);
+		if (t == null)
+			return;
+		t.startWhenPrepared = false;
+		if (t.prepared && t.player.isPlaying())
+			t.player.pause();
+	}
+	
+	/**
+	 * Stop and go back to the beginning.  The sound stays loaded.
+	 */
+	protected synchronized void stop(String id) {
+		Track t = tracks.get(id);
+		if (t == null)
+			return;
+		t.startWhenPrepared = false;
+		if (t.prepared) {
+			if (t.player.isPlaying())
+				t.player.pause();
+			t.player.seekTo(0);
+		}
+	}
+	
+	/**
+	 * Unload a track.  Its player goes back in the pool for the next sound.
+	 */
+	protected synchronized void release(String id) {
+		Track t = tracks.remove(id);
+		if (t != null)
+			recycle(t);
+	}
+	
+	protected synchronized void setVolume(String id, float volume) {
+		Track t = tracks.get(id);
+		if (t != null)
+			t.player.setVolume(volume, volume);
+	}
+	
+	protected synchronized void setLooping(String id, boolean looping) {
+		Track t = tracks.get(id);
+		if (t != null)
+			t.player.setLooping(looping);
+	}
+	
+	/**
+	 * Where a track is up to in milliseconds, or -1 if it isn't playing
+	 */
+	protected synchronized long getPosition(String id) {
+		Track t = tracks.get(id);
+		if (t == null || !t.prepared || !t.player.isPlaying())
+			return -1;
+		return t.player.getCurrentPosition();
+	}
+	
+	/**
+	 * Release every track and pooled player
+	 */
+	public synchronized void destroy() {
+		for (Track t : tracks.values()) {
+			t.player.release();
+			t.player = null;
+		}
+		tracks.clear();
+		for (MediaPlayer p : idle)
+			p.release();
+		idle.clear();
+	}
+	
+	public synchronized String getStats() {
+		return "{\"tracks\":" + tracks.size() +
+			",\"pooled\":" + idle.size() +
+			",\"created\":" + created +
+			",\"reused\":" + reused +
+			",\"plays\":" + plays +
+			",\"durations\":" + durations.size() +
+			",\"durationHits\":" + durationHits + "}";
+	}
+	
+	protected void startPlaying(String file) {
+		play(LEGACY, file);
 	} 
 
 	public void stopPlaying() {
-		if (isPlaying) {
-			mPlayer.stop();
-			mPlayer.release();
-			isPlaying=false;
-		}
+		release(LEGACY);
 	}
 	
-	public void onCompletion(MediaPlayer mPlayer) {
-		mPlayer.stop();
-		mPlayer.release();
-		isPlaying=false;
-    } 
-	
 	protected long getCurrentPosition() {
-		if (isPlaying) 
-		{
-			return(mPlayer.getCurrentPosition());
-		} else { return(-1); }
+		return getPosition(LEGACY);
 	}
 	
 	private boolean isStreaming(String file) 
@@ -128,48 +280,153 @@ public class AudioHandler implements OnCompletionListener, OnPreparedListener, O
 		}
 	}
 	
+	private String path(String file) {
+		// Abstract the base directory
+		return isStreaming(file) ? file : "/sdcard/" + file;
+	}
+	
+	/**
+	 * The length of a sound in milliseconds.  Every sound that's been loaded is remembered, so
+	 * it's only worked out once.  A file that hasn't been loaded yet is loaded just to find
+	 * out, without holding up the tracks.  -1 means it isn't known yet: it's a stream, or a
+	 * track is loading it right now, and "prepared" will bring the length.
+	 */
 	protected long getDuration(String file) {
-		long duration = -2;
-		if (!isPlaying & !isStreaming(file)) {
-			try {
-				mPlayer = new MediaPlayer();
-				mPlayer.setDataSource("/sdcard/" + file);
-				mPlayer.prepare();
-				duration = mPlayer.getDuration();
-				mPlayer.release();
-			} catch (Exception e) { e.printStackTrace(); return(-3); }
-		} else
-		if (isPlaying & !isStreaming(file)) {
-			duration = mPlayer.getDuration();
-		} else 
-		if (isPlaying & isStreaming(file)) {
-			try {
-				duration = mPlayer.getDuration();
-			} catch (Exception e) { e.printStackTrace(); return(-4); }
-		}else { return -1; }
-		return duration;
+		MediaPlayer p;
+		synchronized (this) {
+			Integer known = durations.get(file);
+			if (known != null) {
+				durationHits++;
+				return known.intValue();
+			}
+			if (isStreaming(file))
+				return -1;
+			for (Track t : tracks.values()) {
+				if (t.file.equals(file) && !t.prepared)
+					return -1;
+			}
+			p = obtainPlayer();
+		}
+		try {
+			p.setDataSource(path(file));
+			p.prepare();
+			int duration = p.getDuration();
+			if (duration > 0) {
+				synchronized (this) {
+					durations.put(file, duration);
+				}
+			}
+			return duration;
+		} catch (Exception e) {
+			Log.d(LOG_TAG, file + ": " + e.getMessage());
+			return -3;
+		} finally {
+			synchronized (this) {
+				recyclePlayer(p);
+			}
+		}
 	}
-
-	public void onPrepared(MediaPlayer mPlayer) {
-		if (isPlaying) {
-			mPlayer.setOnCompletionListener(this);
-			mPlayer.setOnBufferingUpdateListener(new OnBufferingUpdateListener()
-			{
-				public void onBufferingUpdate(MediaPlayer mPlayer, int percent)
+	
+	/*
+	 * The track with this id, loading the file into it if it doesn't have that file already
+	 */
+	private Track track(String id, String file) {
+		Track t = tracks.get(id);
+		if (t != null && t.file.equals(file))
+			return t;
+		if (t != null) {
+			tracks.remove(id);
+			recycle(t);
+		}
+		if (tracks.size() >= MAX_TRACKS && !evict())
+		{
+			Log.d(LOG_TAG, "Too many tracks to load " + file);
+			return null;
+		}
+		
+		t = new Track();
+		t.id = id;
+		t.file = file;
+		t.player = obtainPlayer();
+		try {
+			t.player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+			t.player.setDataSource(path(file));
+			t.player.setOnPreparedListener(t);
+			t.player.setOnCompletionListener(t);
+			t.player.setOnErrorListener(t);
+			if (isStreaming(file)) {
+				t.player.setOnBufferingUpdateListener(new OnBufferingUpdateListener()
 				{
-					/* TODO: call back, e.g. update outer progress bar */
-					Log.d("AudioOnBufferingUpdate", "percent: " + percent); 
-				}
-			});
-			mPlayer.start();
+					public void onBufferingUpdate(MediaPlayer mPlayer, int percent)
+					{
+						/* TODO: call back, e.g. update outer progress bar */
+						Log.d("AudioOnBufferingUpdate", "percent: " + percent); 
+					}
+				});
+			}
+			t.player.prepareAsync();
+		} catch (Exception e) {
+			Log.d(LOG_TAG, file + ": " + e.getMessage());
+			recycle(t);
+			return null;
 		}
+		tracks.put(id, t);
+		return t;
 	}
-
-	public boolean onError(MediaPlayer mPlayer, int arg1, int arg2) {
-		Log.e("AUDIO onError", "error " + arg1 + " " + arg2);
+	
+	/*
+	 * Make room by unloading the track that's gone longest without being used, as long as it
+	 * isn't playing
+	 */
+	private boolean evict() {
+		for (Track t : tracks.values()) {
+			if (!t.startWhenPrepared && !(t.prepared && t.player.isPlaying())) {
+				tracks.remove(t.id);
+				recycle(t);
+				// So the page lets go of it too
+				status(t.id, "evicted", 0);
+				return true;
+			}
+		}
 		return false;
 	}
 	
+	private void recycle(Track t) {
+		if (t.player == null)
+			return;
+		MediaPlayer p = t.player;
+		t.player = null;
+		t.prepared = false;
+		recyclePlayer(p);
+	}
+	
+	private MediaPlayer obtainPlayer() {
+		if (!idle.isEmpty()) {
+			reused++;
+			return idle.removeFirst();
+		}
+		created++;
+		return new MediaPlayer();
+	}
+	
+	private void recyclePlayer(MediaPlayer p) {
+		if (idle.size() >= POOL_SIZE) {
+			p.release();
+			return;
+		}
+		p.reset();
+		p.setOnPreparedListener(null);
+		p.setOnCompletionListener(null);
+		p.setOnErrorListener(null);
+		p.setOnBufferingUpdateListener(null);
+		idle.add(p);
+	}
+	
+	private void status(String id, String status, int value) {
+		if (mQueue != null)
+			mQueue.enqueue("Media.onStatus(" + BridgeQueue.quote(id) + "," + BridgeQueue.quote(status) + "," + value + ")");
+	}
+	
 	protected void setAudioOutputDevice(int output){
 		// Changes the default audio output device to speaker or earpiece 
 		AudioManager audiMgr = (AudioManager) mCtx.getSystemService(Context.AUDIO_SERVICE);
@@ -0,0 +1,571 @@
+package com.phonegap;
+/* License (MIT)
+ * Copyright (c) 2008 Nitobi
+ * website: http://phonegap.com
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * Software), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebView;
+
+/*
+ * This class is the single way out of native code and into the page.
+ *
+ * Every listener used to call appView.loadUrl("javascript:...") once per event, which means
+ * one URL parse and one trip into WebKit per sensor reading.  Instead, statements are queued
+ * here and flushed as a single javascript: URL once per time window, or sooner if the batch
+ * gets too big.
+ *
+ * Once the page turns on pull mode, statements go into a lock-free ring instead and the page
+ * drains them itself with GapQueue.drain(), the same way the BlackBerry side collects its
+ * pendingResponses through getHTTPCookie.  Native only pokes the page once per drain cycle.
+ * If the ring fills up, statements spill into a list behind it and come out in order.
+ *
+ * Calls made through exec() go one better: whatever is waiting comes back in the call's own
+ * return value, ahead of its result, so the page never has to cross the bridge again for it.
+ */
+
+public class BridgeQueue {
+
+	private static final String LOG_TAG = "BridgeQueue";
+	private static final String JS_PREFIX = "javascript:";
+	private static final String JS_POKE = "javascript:PhoneGap.drain()";
+	private static final int RING_SIZE = 1024;
+
+	private WebView mAppView;
+	private Handler mHandler;
+
+	/*
+	 * Limits, these can be changed from Javascript through configure()
+	 */
+	private int flushInterval = 16;
+	private int maxMessages = 64;
+	private int maxChars = 64 * 1024;
+
+	private StringBuilder pending = new StringBuilder(JS_PREFIX);
+	private int pendingCount = 0;
+	private long oldestPending = 0;
+	private boolean flushScheduled = false;
+
+	/*
+	 * Counters
+	 */
+	private long enqueued = 0;
+	private long flushes = 0;
+	private int maxDepth = 0;
+	private long flushTime = 0;
+	private long lastFlushTime = 0;
+	private long maxLatency = 0;
+
+	/*
+	 * Pull mode.  Any thread can produce, only the page (on the WebCore thread) consumes.
+	 * Producers claim a slot by bumping tail, then publish into it.  The consumer stops at the
+	 * first slot that hasn't been published yet and picks it up on the next drain.
+	 */
+	private volatile boolean pull = false;
+	private AtomicReferenceArray<String> ring = new AtomicReferenceArray<String>(RING_SIZE);
+	private AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+	private AtomicBoolean pokePending = new AtomicBoolean();
+	private StringBuilder drained = new StringBuilder();
+	private Object mDrainLock = new Object();
+	private LinkedList<String> spill = new LinkedList<String>();
+	private volatile int spilled = 0;
+
+	/*
+	 * The objects exec() can call, by the names the page knows them by
+	 */
+	private HashMap<String, Object> targets = new HashMap<String, Object>();
+
+	private volatile long pulled = 0;
+	private volatile long drains = 0;
+	private volatile long pokes = 0;
+	private AtomicLong overflows = new AtomicLong();
+
+	private Runnable mPoker = new Runnable() {
+		public void run()
+		{
+			// The page is gone, or never turned pull mode on for itself
+			if (!pull)
+			{
+				pokePending.set(false);
+				rescue();
+			}
+			// The page may already have drained everything on its own
+			else if (pokePending.get() && (head != tail.get() || spilled > 0))
+			{
+				pokes++;
+				mAppView.loadUrl(JS_POKE);
+			}
+			else
+				pokePending.set(false);
+		}
+	};
+
+	private Runnable mFlusher = new Runnable() {
+		public void run()
+		{
+			flush();
+		}
+	};
+
+	/*
+	 * The queue has to be created on the UI thread, since that's where the handler posts back to
+	 */
+	BridgeQueue(WebView appView)
+	{
+		mAppView = appView;
+		mHandler = new Handler();
+	}
+
+	/**
+	 * Queue a Javascript statement, without the javascript: prefix, to be run in the page
+	 */
+	void enqueue(String statement)
+	{
+		if (pull)
+		{
+			offer(statement);
+			// Pull mode was turned off while we were at it, and nothing may be left to drain
+			if (!pull)
+				rescue();
+			return;
+		}
+		push(statement);
+	}
+
+	private void push(String statement)
+	{
+		boolean flushNow;
+		synchronized (this)
+		{
+			if (pendingCount == 0)
+				oldestPending = SystemClock.uptimeMillis();
+			// One bad callback shouldn't take the rest of the batch down with it
+			pending.append("try{").append(statement).append("}catch(e){}");
+			pendingCount++;
+			enqueued++;
+			if (pendingCount > maxDepth)
+				maxDepth = pendingCount;
+
+			flushNow = pendingCount >= maxMessages || pending.length() >= maxChars;
+			if (!flushNow && flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		if (flushNow)
+		{
+			mHandler.removeCallbacks(mFlusher);
+			mHandler.post(mFlusher);
+		}
+		else
+		{
+			mHandler.postDelayed(mFlusher, flushInterval);
+		}
+	}
+
+	/*
+	 * Send everything that's pending as one evaluation.  Runs on the UI thread.
+	 */
+	private void flush()
+	{
+		String url;
+		long latency;
+		synchronized (this)
+		{
+			flushScheduled = false;
+			if (pendingCount == 0)
+				return;
+			url = pending.toString();
+			latency = SystemClock.uptimeMillis() - oldestPending;
+			pending.setLength(JS_PREFIX.length());
+			pendingCount = 0;
+		}
+
+		long start = SystemClock.uptimeMillis();
+		mAppView.loadUrl(url);
+		long cost = SystemClock.uptimeMillis() - start;
+
+		synchronized (this)
+		{
+			flushes++;
+			flushTime += cost;
+			lastFlushTime = cost;
+			if (latency > maxLatency)
+				maxLatency = latency;
+		}
+	}
+
+	/*
+	 * Put a statement in the ring.  If the ring is full it goes in the spill list, and so does
+	 * everything after it until the page has drained the list, so nothing overtakes anything
+	 * older.
+	 */
+	private void offer(String statement)
+	{
+		if (spilled > 0 && spillIfSpilling(statement))
+			return;
+		long t;
+		do {
+			t = tail.get();
+			if (t - head >= RING_SIZE)
+			{
+				synchronized (spill)
+				{
+					spill.add(statement);
+					spilled = spill.size();
+				}
+				overflows.incrementAndGet();
+				schedulePoke();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		ring.set((int) t & (RING_SIZE - 1), statement);
+		schedulePoke();
+	}
+
+	private boolean spillIfSpilling(String statement)
+	{
+		synchronized (spill)
+		{
+			if (spill.isEmpty())
+				return false;
+			spill.add(statement);
+			spilled = spill.size();
+		}
+		schedulePoke();
+		return true;
+	}
+
+	private void schedulePoke()
+	{
+		// Only the first message after a drain schedules a poke
+		if (pokePending.compareAndSet(false, true))
+			mHandler.postDelayed(mPoker, flushInterval);
+	}
+
+	/**
+	 * Called from Javascript to collect everything that's waiting, as one script.
+	 * Returns an empty string when there's nothing to do.
+	 */
+	public String drain()
+	{
+		synchronized (mDrainLock)
+		{
+			drained.setLength(0);
+			drainInto(drained);
+			return drained.toString();
+		}
+	}
+
+	/*
+	 * Take everything out of the ring, then the spill list.  The caller holds mDrainLock, so
+	 * there's only ever one consumer.
+	 */
+	private void drainInto(StringBuilder out)
+	{
+		pokePending.set(false);
+		long h = head;
+		long t = tail.get();
+		while (h < t)
+		{
+			int slot = (int) h & (RING_SIZE - 1);
+			String statement = ring.get(slot);
+			// Claimed, but the producer hasn't published yet
+			if (statement == null)
+				break;
+			ring.lazySet(slot, null);
+			out.append("try{").append(statement).append("}catch(e){}");
+			h++;
+		}
+		if (h != head)
+		{
+			pulled += h - head;
+			drains++;
+			head = h;
+		}
+
+		if (spilled > 0)
+		{
+			synchronized (spill)
+			{
+				// Anything still in the ring is older than the spill list, it has to go first
+				if (h == tail.get())
+				{
+					pulled += spill.size();
+					for (String statement : spill)
+						out.append("try{").append(statement).append("}catch(e){}");
+					spill.clear();
+					spilled = 0;
+				}
+			}
+		}
+
+		// Whatever we stopped short of needs another poke
+		if ((h != tail.get() || spilled > 0) && pokePending.compareAndSet(false, true))
+			mHandler.postDelayed(mPoker, flushInterval);
+	}
+
+	/*
+	 * Send whatever is in the ring out the push way, once pull mode is off
+	 */
+	private void rescue()
+	{
+		String rest = drain();
+		if (rest.length() > 0)
+			push(rest);
+	}
+
+	/**
+	 * Switch between pushing batches into the page and letting the page pull them.
+	 * The page turns this on once it has PhoneGap.drain defined, and DroidGap turns it off
+	 * whenever a new page starts loading.
+	 */
+	public void setPull(boolean enable)
+	{
+		pull = enable;
+		// Don't strand anything that was already in the ring, or is going in it right now
+		if (!enable)
+			rescue();
+	}
+
+	/*
+	 * Make an object callable through exec(), under the name the page knows it by
+	 */
+	synchronized void register(String name, Object target)
+	{
+		targets.put(name, target);
+	}
+
+	/**
+	 * Called from Javascript through PhoneGap.invoke.  Calls a method on one of the registered
+	 * objects and returns a script that runs everything waiting for the page and then evaluates
+	 * to the method's result, so the result and the pending callbacks cross the bridge together.
+	 *
+	 * @param args	the arguments as a JSON array
+	 */
+	public String exec(String target, String method, String args)
+	{
+		StringBuilder out = new StringBuilder();
+		String result;
+		try {
+			result = invoke(target, method, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			result = "throw new Error(" + quote(target + "." + method + ": " + cause) + ")";
+		} catch (Exception e) {
+			result = "throw new Error(" + quote(target + "." + method + ": " + e.getMessage()) + ")";
+		}
+
+		// Taken after the call, so anything the call itself queued comes back too
+		synchronized (this)
+		{
+			if (pendingCount > 0)
+			{
+				out.append(pending, JS_PREFIX.length(), pending.length());
+				pending.setLength(JS_PREFIX.length());
+				pendingCount = 0;
+			}
+		}
+		synchronized (mDrainLock)
+		{
+			drainInto(out);
+		}
+		out.append(result);
+		return out.toString();
+	}
+
+	/*
+	 * Returns the result as a Javascript literal
+	 */
+	private String invoke(String name, String method, String args) throws Exception
+	{
+		Object target;
+		synchronized (this)
+		{
+			target = targets.get(name);
+		}
+		if (target == null)
+			throw new NoSuchMethodException("no such object");
+		JSONArray values = new JSONArray(args);
+		Method[] methods = target.getClass().getMethods();
+		for (int i = 0; i < methods.length; i++)
+		{
+			Method m = methods[i];
+			Class<?>[] types = m.getParameterTypes();
+			if (!m.getName().equals(method) || types.length != values.length())
+				continue;
+			Object[] params = new Object[types.length];
+			for (int j = 0; j < types.length; j++)
+				params[j] = convert(values.opt(j), types[j]);
+			Object result = m.invoke(target, params);
+			if (m.getReturnType() == void.class)
+				return "undefined";
+			if (result == null)
+				return "null";
+			if (result instanceof String)
+				return quote((String) result);
+			return String.valueOf(result);
+		}
+		throw new NoSuchMethodException("no such method");
+	}
+
+	private static Object convert(Object value, Class<?> type) throws JSONException
+	{
+		if (value == JSONObject.NULL)
+			value = null;
+		if (type == String.class)
+			return value == null ? null : value.toString();
+		if (type == boolean.class)
+			return Boolean.valueOf(value instanceof Boolean ? ((Boolean) value).booleanValue() : "true".equals(value));
+		if (!(value instanceof Number))
+			throw new JSONException("expected a number, got " + value);
+		Number n = (Number) value;
+		if (type == int.class)
+			return Integer.valueOf(n.intValue());
+		if (type == long.class)
+			return Long.valueOf(n.longValue());
+		if (type == float.class)
+			return Float.valueOf(n.floatValue());
+		if (type == double.class)
+			return Double.valueOf(n.doubleValue());
+		throw new JSONException("can't pass a " + type.getName());
+	}
+
+	/**
+	 * Change the batching limits.  Anything less than one is left alone.
+	 *
+	 * @param interval	milliseconds to wait for more messages before flushing
+	 * @param messages	number of queued statements that forces an immediate flush
+	 * @param chars		size of the pending script that forces an immediate flush
+	 */
+	public synchronized void configure(int interval, int messages, int chars)
+	{
+		if (interval > 0)
+			flushInterval = interval;
+		if (messages > 0)
+			maxMessages = messages;
+		if (chars > 0)
+			maxChars = chars;
+		Log.d(LOG_TAG, "interval " + flushInterval + "ms, " + maxMessages + " messages, " + maxChars + " chars");
+	}
+
+	public synchronized int getDepth()
+	{
+		return pendingCount;
+	}
+
+	/**
+	 * Returns the counters as a JSON object, so they can be looked at from the page
+	 */
+	public synchronized String getStats()
+	{
+		return "{\"depth\":" + pendingCount +
+			",\"maxDepth\":" + maxDepth +
+			",\"enqueued\":" + enqueued +
+			",\"flushes\":" + flushes +
+			",\"flushTime\":" + flushTime +
+			",\"lastFlushTime\":" + lastFlushTime +
+			",\"maxLatency\":" + maxLatency +
+			",\"pull\":" + pull +
+			",\"ringDepth\":" + (tail.get() - head) +
+			",\"spilled\":" + spilled +
+			",\"pulled\":" + pulled +
+			",\"drains\":" + drains +
+			",\"pokes\":" + pokes +
+			",\"overflows\":" + overflows.get() + "}";
+	}
+
+	public synchronized void resetStats()
+	{
+		enqueued = 0;
+		flushes = 0;
+		maxDepth = pendingCount;
+		flushTime = 0;
+		lastFlushTime = 0;
+		maxLatency = 0;
+		pulled = 0;
+		drains = 0;
+		pokes = 0;
+		overflows.set(0);
+	}
+
+	/**
+	 * Quote a string so it can be dropped into a Javascript statement as a literal
+	 */
+	public static String quote(String s)
+	{
+		if (s == null)
+			return "null";
+		StringBuilder out = new StringBuilder(s.length() + 2);
+		quote(s, out);
+		return out.toString();
+	}
+
+	public static void quote(String s, StringBuilder out)
+	{
+		if (s == null)
+		{
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"':  out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				// loadUrl decodes the URL, so a bare % would eat the next two characters
+				case '%':  out.append("\\u0025"); break;
+				default:
+					if (c < 0x20 || c == '\u2028' || c == '\u2029')
+					{
+						String hex = Integer.toHexString(c);
+						out.append("\\u");
+						for (int j = hex.length(); j < 4; j++)
+							out.append('0');
+						out.append(hex);
+					}
+					else
+						out.append(c);
+			}
+		}
+		out.append('"');
+	}
+}
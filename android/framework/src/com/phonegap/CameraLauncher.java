@@ -1,34 +1,109 @@
 package com.phonegap;
 
-import android.webkit.WebView;
+import java.io.File;
 
+import android.content.Intent;
+import android.os.Environment;
+
+/*
+ * The pictures themselves are worked on by ImageProcessor, which sends them straight to the
+ * page as they're done; all CameraPreview hands back is whether any were taken.
+ *
+ * A picture comes back one of two ways.  FILE_URI has CameraPreview write the JPEG to a file
+ * and only its file:// URI crosses the bridge, which is what most pages want.  DATA_URL sends
+ * the whole picture back as a base64 string, which a 5 megapixel photo makes a string of
+ * several megabytes, copied through an Intent extra and the bridge.  It's only there for pages
+ * that ask for it.
+ */
 
 public class CameraLauncher {
 		
-	private WebView mAppView;
+	public static final int DATA_URL = 0;
+	public static final int FILE_URI = 1;
+	
+	private BridgeQueue mQueue;
 	private DroidGap mGap;
+	private ImageProcessor mProcessor;
 	int quality;	
 	
-	CameraLauncher(WebView view, DroidGap gap)
+	CameraLauncher(BridgeQueue queue, DroidGap gap)
 	{
-		mAppView = view;
+		mQueue = queue;
 		mGap = gap;
+		mProcessor = new ImageProcessor(queue, gap.getCacheDir());
+	}
+	
+	public void destroy()
+	{
+		mProcessor.shutdown();
 	}
 	
+	/**
+	 * Take a picture and get it back as base64
+	 */
 	public void takePicture(int quality)
 	{
-		mGap.startCamera(quality);
+		getPicture(quality, DATA_URL, 0, 0, false, 1);
+	}
+	
+	/**
+	 * @param destinationType		DATA_URL or FILE_URI
+	 * @param targetWidth			the widest the picture should be, or 0 for any width
+	 * @param targetHeight			the tallest the picture should be, or 0 for any height
+	 * @param correctOrientation	turn the picture upright if the camera says it's on its side
+	 * @param burst					how many pictures to take back to back
+	 */
+	public void getPicture(int quality, int destinationType, int targetWidth, int targetHeight,
+		boolean correctOrientation, int burst)
+	{
+		Intent i = new Intent(mGap, CameraPreview.class);
+		i.setAction("android.intent.action.PICK");
+		i.putExtra("quality", quality);
+		i.putExtra("destinationType", destinationType);
+		i.putExtra("targetWidth", targetWidth);
+		i.putExtra("targetHeight", targetHeight);
+		i.putExtra("correctOrientation", correctOrientation);
+		i.putExtra("burst", burst);
+		if (destinationType == FILE_URI)
+			i.putExtra("outputDir", captureDir().getAbsolutePath());
+		mGap.startCamera(i);
+	}
+	
+	/**
+	 * Stop working on a picture.  Its pictureDone says it was cancelled.
+	 */
+	public void cancel(int id)
+	{
+		mProcessor.cancel(id);
+	}
+	
+	public void cancelAll()
+	{
+		mProcessor.cancelAll();
 	}
 	
-	/* Return Base64 Encoded String to Javascript */
-	public void processPicture( String js_out )
-	{		
-		mAppView.loadUrl("javascript:navigator.camera.win('" + js_out + "');");			
+	public String getStats()
+	{
+		return mProcessor.getStats();
+	}
+	
+	/*
+	 * On the SD card if there is one, so other apps can get at it too
+	 */
+	private File captureDir()
+	{
+		File dir;
+		if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()))
+			dir = new File(Environment.getExternalStorageDirectory(), "phonegap");
+		else
+			dir = mGap.getCacheDir();
+		dir.mkdirs();
+		return dir;
 	}
 	
 	public void failPicture(String err)
 	{
-		mAppView.loadUrl("javascript:navigator.camera.fail('" + err + "');");
+		mQueue.enqueue("navigator.camera.fail(" + BridgeQueue.quote(err) + ");");
 	}
 	
 }
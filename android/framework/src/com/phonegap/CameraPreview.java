@@ -1,16 +1,11 @@
 package com.phonegap;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 
-import org.apache.commons.codec.binary.Base64;
-
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.PixelFormat;
-import android.graphics.Bitmap.CompressFormat;
 import android.hardware.Camera;
 import android.net.Uri;
 import android.os.Bundle;
@@ -38,6 +33,18 @@ public class CameraPreview extends Activity implements SurfaceHolder.Callback{
     boolean mPreviewRunning = false;
     
     int quality;
+    int destinationType;
+    String outputDir;
+    int targetWidth;
+    int targetHeight;
+    boolean correctOrientation;
+    
+    // How many pictures to take, and how many have been
+    int burst;
+    int shots = 0;
+    
+    // Set while a picture is being taken, so a second press doesn't take another
+    boolean mTaken = false;
     Intent mIntent;
     
     public void onCreate(Bundle icicle)
@@ -80,6 +87,12 @@ public class CameraPreview extends Activity implements SurfaceHolder.Callback{
         mIntent = this.getIntent();
         
         quality = mIntent.getIntExtra("quality", 100);
+        destinationType = mIntent.getIntExtra("destinationType", CameraLauncher.DATA_URL);
+        outputDir = mIntent.getStringExtra("outputDir");
+        targetWidth = mIntent.getIntExtra("targetWidth", 0);
+        targetHeight = mIntent.getIntExtra("targetHeight", 0);
+        correctOrientation = mIntent.getBooleanExtra("correctOrientation", false);
+        burst = Math.max(1, mIntent.getIntExtra("burst", 1));
         
         
         stopButton.setOnClickListener(mSnapListener);
@@ -87,9 +100,17 @@ public class CameraPreview extends Activity implements SurfaceHolder.Callback{
     
     private OnClickListener mSnapListener = new OnClickListener() {
         public void onClick(View v) {
-        	mCamera.takePicture(null, null, mPictureCallback);
+        	takePicture();
         }
     };
+    
+    private void takePicture()
+    {
+    	if (mTaken)
+    		return;
+    	mTaken = true;
+    	mCamera.takePicture(null, null, mPictureCallback);
+    }
 
     public boolean onCreateOptionsMenu(android.view.Menu menu) {
         MenuItem item = menu.add(0, 0, 0, "goto gallery");
@@ -111,50 +132,60 @@ public class CameraPreview extends Activity implements SurfaceHolder.Callback{
     }
 
     /*
-     * We got the data, send it back to PhoneGap to be handled and processed.
-     * 
+     * We got the data, send it off to be processed.  That happens in the background and the
+     * result goes straight to the page, so we're free to take the next picture of a burst, or
+     * to go back to PhoneGap, right away.
      */
     
     Camera.PictureCallback mPictureCallback = new Camera.PictureCallback() {
         public void onPictureTaken(byte[] data, Camera c) {
             Log.e(TAG, "PICTURE CALLBACK: data.length = " + data.length);
-            storeAndExit(data);
+            mPreviewRunning = false;
+            ImageProcessor processor = ImageProcessor.getInstance();
+            if (processor == null)
+            {
+            	finish();
+            	return;
+            }
+            processor.submit(data, settingsForShot());
+            shots++;
+            if (shots < burst)
+            {
+            	mCamera.startPreview();
+            	mPreviewRunning = true;
+            	mTaken = false;
+            	takePicture();
+            	return;
+            }
+            setResult(RESULT_OK, mIntent);
+            finish();
         }
     };
-
-    /*
-     * We can't just store and exit, because Android freezes up when we try to cram a picture across a process in a Bundle.
-     * We HAVE to compress this data and send back the compressed data  
-     */
-    public void storeAndExit(byte[] data)
+    
+    private ImageProcessor.Settings settingsForShot()
     {
-    	ByteArrayOutputStream jpeg_data = new ByteArrayOutputStream();
-		Bitmap myMap = BitmapFactory.decodeByteArray(data, 0, data.length);
-		try {
-			if (myMap.compress(CompressFormat.JPEG, quality, jpeg_data))
-			{
-				byte[] code  = jpeg_data.toByteArray();
-				byte[] output = Base64.encodeBase64(code);
-				String js_out = new String(output);
-				mIntent.putExtra("picture", js_out);
-				setResult(RESULT_OK, mIntent);
-			}	
-		}
-		catch(Exception e)
-		{
-			//Do shit here
-		}
-        finish();
+    	ImageProcessor.Settings settings = new ImageProcessor.Settings();
+    	settings.quality = quality;
+    	settings.destinationType = destinationType;
+    	settings.targetWidth = targetWidth;
+    	settings.targetHeight = targetHeight;
+    	settings.correctOrientation = correctOrientation;
+    	if (outputDir != null)
+    		settings.output = new File(outputDir, "capture-" + System.currentTimeMillis() + "-" + shots + ".jpg").getPath();
+    	return settings;
     }
     
     public boolean onKeyDown(int keyCode, KeyEvent event)
     {
         if (keyCode == KeyEvent.KEYCODE_BACK) {        	
+            // Cutting a burst short still keeps the pictures already taken
+            if (shots > 0)
+            	setResult(RESULT_OK, mIntent);
             return super.onKeyDown(keyCode, event);
         }
  
         if (keyCode == KeyEvent.KEYCODE_CAMERA || keyCode == KeyEvent.KEYCODE_DPAD_CENTER || keyCode == KeyEvent.KEYCODE_SEARCH) {
-            mCamera.takePicture(null, null, mPictureCallback);
+            takePicture();
             return true;
         }
 
@@ -210,7 +241,8 @@ public class CameraPreview extends Activity implements SurfaceHolder.Callback{
     public void surfaceDestroyed(SurfaceHolder holder)
     {
         Log.e(TAG, "surfaceDestroyed");
-        mCamera.stopPreview();
+        if (mPreviewRunning)
+        	mCamera.stopPreview();
         mPreviewRunning = false;
         mCamera.release();
     }
@@ -1,54 +1,232 @@
 package com.phonegap;
 
-import java.util.List;
-
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.content.Context;
-import android.webkit.WebView;
-
-public class CompassListener implements SensorEventListener{
-	WebView mAppView;
-	Context mCtx;
-	Sensor mSensor;	
-	
-	private SensorManager sensorManager;
-	
-	CompassListener(Context ctx, WebView appView)
-	{
-		mCtx = ctx;
-		mAppView = appView;		
-		sensorManager = (SensorManager) mCtx.getSystemService(Context.SENSOR_SERVICE);
-	}
-	
+
+/*
+ * Headings are filtered here before they cross the bridge.  A stationary device produces a
+ * steady stream of readings that wobble by a fraction of a degree, so readings are smoothed
+ * and then dropped unless they moved further than the dead-band from the last one we sent.
+ *
+ * Headings wrap at 360, so all the maths is done on the shortest angle between two readings,
+ * or on unit vectors for the circular mean.
+ */
+
+public class CompassListener implements SensorHub.Subscriber{
+
+	public static final int SMOOTH_NONE = 0;
+	public static final int SMOOTH_LOW_PASS = 1;
+	public static final int SMOOTH_CIRCULAR_MEAN = 2;
+
+	private static final int MAX_WINDOW = 64;
+
+	SensorHub mHub;
+	int mTime = 100;
+
+	/*
+	 * Filter settings
+	 */
+	private float deadband = 1.0f;
+	private int smoothing = SMOOTH_NONE;
+	private float alpha = 0.25f;
+	private int window = 8;
+
+	/*
+	 * Filter state
+	 */
+	private float smoothed;
+	private boolean primed = false;
+	private float[] sinRing = new float[MAX_WINDOW];
+	private float[] cosRing = new float[MAX_WINDOW];
+	private float sinSum, cosSum;
+	private int ringPos, ringCount;
+
+	private float heading;
+	private float lastSent;
+	private boolean sentAny = false;
+	private boolean fresh = false;
+
+	/*
+	 * Counters
+	 */
+	private long samples = 0;
+	private long suppressed = 0;
+	private long coalesced = 0;
+	private long sent = 0;
+
+	CompassListener(SensorHub hub)
+	{
+		mHub = hub;
+	}
+
 
 	public void start()
 	{
-		List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_ORIENTATION);
-		if (list.size() > 0)
+		mHub.start(Sensor.TYPE_ORIENTATION, this, mTime);
+	}
+
+	public void stop()
+	{
+		mHub.stop(Sensor.TYPE_ORIENTATION, this);
+		synchronized (mHub)
 		{
-			this.mSensor = list.get(0);
-			this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_NORMAL);
+			fresh = false;
+			resetFilter();
 		}
-		
 	}
-	
-	public void stop()
+
+	/**
+	 * Readings that moved less than this many degrees since the last one sent are dropped.
+	 * Zero sends everything.
+	 */
+	public void setDeadband(float degrees)
 	{
-		this.sensorManager.unregisterListener(this);
+		synchronized (mHub)
+		{
+			deadband = Math.max(0, degrees);
+		}
 	}
-	
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
-		
+
+	/**
+	 * Choose how readings are smoothed.
+	 *
+	 * @param mode		SMOOTH_NONE, SMOOTH_LOW_PASS or SMOOTH_CIRCULAR_MEAN
+	 * @param factor	for the low pass, how much of each new reading is let through (0 to 1)
+	 * @param size		for the circular mean, how many readings are averaged
+	 */
+	public void setSmoothing(int mode, float factor, int size)
+	{
+		synchronized (mHub)
+		{
+			if (mode >= SMOOTH_NONE && mode <= SMOOTH_CIRCULAR_MEAN)
+				smoothing = mode;
+			if (factor > 0 && factor <= 1)
+				alpha = factor;
+			if (size > 0)
+				window = Math.min(size, MAX_WINDOW);
+			resetFilter();
+		}
 	}
 
+	public String getStats()
+	{
+		synchronized (mHub)
+		{
+			return "{\"samples\":" + samples +
+				",\"suppressed\":" + suppressed +
+				",\"coalesced\":" + coalesced +
+				",\"sent\":" + sent + "}";
+		}
+	}
+
+	private void resetFilter()
+	{
+		primed = false;
+		sinSum = 0;
+		cosSum = 0;
+		ringPos = 0;
+		ringCount = 0;
+		sentAny = false;
+	}
+
+	/*
+	 * The signed shortest way from one heading to another, between -180 and 180
+	 */
+	static float angleBetween(float from, float to)
+	{
+		float d = (to - from) % 360;
+		if (d > 180)
+			d -= 360;
+		else if (d < -180)
+			d += 360;
+		return d;
+	}
+
+	static float normalize(float degrees)
+	{
+		degrees %= 360;
+		return degrees < 0 ? degrees + 360 : degrees;
+	}
 
-	public void onSensorChanged(SensorEvent event) {
+	private float smooth(float raw)
+	{
+		switch (smoothing)
+		{
+			case SMOOTH_LOW_PASS:
+				if (!primed)
+				{
+					smoothed = raw;
+					primed = true;
+				}
+				else
+					smoothed = normalize(smoothed + alpha * angleBetween(smoothed, raw));
+				return smoothed;
+
+			case SMOOTH_CIRCULAR_MEAN:
+				double rad = Math.toRadians(raw);
+				float s = (float) Math.sin(rad);
+				float c = (float) Math.cos(rad);
+				if (ringCount == window)
+				{
+					sinSum -= sinRing[ringPos];
+					cosSum -= cosRing[ringPos];
+				}
+				else
+					ringCount++;
+				sinRing[ringPos] = s;
+				cosRing[ringPos] = c;
+				sinSum += s;
+				cosSum += c;
+				ringPos = (ringPos + 1) % window;
+				// Adding and taking away floats drifts, so start the sums over once per lap
+				if (ringPos == 0)
+				{
+					sinSum = 0;
+					cosSum = 0;
+					for (int i = 0; i < ringCount; i++)
+					{
+						sinSum += sinRing[i];
+						cosSum += cosRing[i];
+					}
+				}
+				return normalize((float) Math.toDegrees(Math.atan2(sinSum, cosSum)));
+
+			default:
+				return raw;
+		}
+	}
+
+	public void onSample(int type, long time, float[] values) {
+		samples++;
 		// We only care about the orientation as far as it refers to Magnetic North
-		float heading = event.values[0];
-		mAppView.loadUrl("javascript:gotBearing(" + heading + ")");
+		float filtered = smooth(values[0]);
+
+		if (sentAny && Math.abs(angleBetween(lastSent, filtered)) < deadband)
+		{
+			// A heading that's still waiting to go out is out of date now, even if this one
+			// wouldn't have been worth sending on its own
+			if (fresh)
+			{
+				heading = filtered;
+				coalesced++;
+			}
+			else
+				suppressed++;
+			return;
+		}
+		if (fresh)
+			coalesced++;
+		heading = filtered;
+		fresh = true;
+	}
+
+	public boolean appendPacket(StringBuilder packet) {
+		if (!fresh)
+			return false;
+		fresh = false;
+		lastSent = heading;
+		sentAny = true;
+		sent++;
+		packet.append("gotBearing(").append(heading).append(')');
+		return true;
 	}
 }
@@ -0,0 +1,450 @@
+package com.phonegap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.People;
+import android.util.Log;
+
+/*
+ * An in-memory copy of the address book for type-ahead search.
+ *
+ * Every word of every name is normalized (lower case, letters and digits only) and kept in one
+ * sorted array, so a prefix search is a binary search followed by a short scan.  Phone numbers
+ * are reduced to their digits and stored reversed, so the same prefix search finds numbers by
+ * their last digits, and "555 1234" matches "+1 (416) 555-1234".
+ *
+ * The index is built on a background thread the first time it's needed, and rebuilt whenever
+ * the provider says the contacts changed.  Searches never wait for a build: they use whichever
+ * snapshot is current, and a snapshot is never changed once it's published.
+ */
+
+@SuppressWarnings("deprecation")
+public class ContactIndex {
+
+	private static final String LOG_TAG = "ContactIndex";
+
+	// Changes tend to come in bursts, e.g. during a sync
+	private static final int REBUILD_DELAY = 2000;
+
+	/*
+	 * One immutable build of the index
+	 */
+	private static class Snapshot
+	{
+		String[] ids;
+		String[] names;
+		String[] phones;
+		String[] emails;
+
+		// Sorted keys, and the contact each one belongs to
+		String[] nameKeys;
+		int[] nameEntries;
+		String[] phoneKeys;
+		int[] phoneEntries;
+
+		long builtAt;
+		long buildTime;
+	}
+
+	private ContactManager mContacts;
+	private Handler mHandler;
+	private volatile Snapshot snapshot;
+
+	private boolean observing = false;
+	private boolean building = false;
+	private boolean dirty = false;
+	private int builds = 0;
+	private long searches = 0;
+
+	private ContentObserver mObserver;
+
+	private Runnable mRebuild = new Runnable() {
+		public void run()
+		{
+			rebuild();
+		}
+	};
+
+	/*
+	 * Has to be created on the UI thread, since change notifications are delivered there
+	 */
+	ContactIndex(ContactManager contacts)
+	{
+		mContacts = contacts;
+		mHandler = new Handler();
+		mObserver = new ContentObserver(mHandler) {
+			@Override
+			public void onChange(boolean selfChange)
+			{
+				mHandler.removeCallbacks(mRebuild);
+				mHandler.postDelayed(mRebuild, REBUILD_DELAY);
+			}
+		};
+	}
+
+	/**
+	 * Start building the index and watching for changes, if that hasn't happened yet.
+	 */
+	public void open()
+	{
+		synchronized (this)
+		{
+			if (observing)
+				return;
+			observing = true;
+		}
+		// Emails live in contact_methods, and changing one doesn't touch people
+		mContacts.mApp.getContentResolver().registerContentObserver(People.CONTENT_URI, true, mObserver);
+		mContacts.mApp.getContentResolver().registerContentObserver(ContactMethods.CONTENT_URI, true, mObserver);
+		rebuild();
+	}
+
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (!observing)
+				return;
+			observing = false;
+		}
+		mHandler.removeCallbacks(mRebuild);
+		mContacts.mApp.getContentResolver().unregisterContentObserver(mObserver);
+		snapshot = null;
+	}
+
+	public boolean isReady()
+	{
+		return snapshot != null;
+	}
+
+	/**
+	 * Find contacts by name prefix and/or the trailing digits of their number.  Either can be
+	 * empty, but not both.
+	 *
+	 * @return a JSON array of {id, name, phone, email}, or null if the index isn't built yet
+	 */
+	public String search(String text, String number, int limit)
+	{
+		Snapshot s = snapshot;
+		if (s == null)
+			return null;
+		synchronized (this)
+		{
+			searches++;
+		}
+
+		String[] words = splitWords(text);
+		String digits = digitsOf(number);
+		if (limit <= 0)
+			limit = Integer.MAX_VALUE;
+
+		/*
+		 * Each word has to prefix some word of the name, in any order.  Start from the first
+		 * word's matches and filter them, so the cost depends on the size of the result and
+		 * not of the address book.
+		 */
+		int[] candidates = null;
+		if (words.length > 0)
+			candidates = collect(s.nameKeys, s.nameEntries, words[0]);
+		else if (digits.length() > 0)
+			candidates = collect(s.phoneKeys, s.phoneEntries, reverse(digits));
+		else
+			return "[]";
+
+		StringBuilder out = new StringBuilder("[");
+		int found = 0;
+		for (int i = 0; i < candidates.length && found < limit; i++)
+		{
+			int e = candidates[i];
+			if (!matches(s, e, words, digits))
+				continue;
+			if (found > 0)
+				out.append(',');
+			out.append("{\"id\":");
+			BridgeQueue.quote(s.ids[e], out);
+			out.append(",\"name\":");
+			BridgeQueue.quote(s.names[e], out);
+			out.append(",\"phone\":");
+			BridgeQueue.quote(s.phones[e], out);
+			out.append(",\"email\":");
+			BridgeQueue.quote(s.emails[e], out);
+			out.append('}');
+			found++;
+		}
+		return out.append(']').toString();
+	}
+
+	public synchronized String getStats()
+	{
+		Snapshot s = snapshot;
+		return "{\"ready\":" + (s != null) +
+			",\"contacts\":" + (s == null ? 0 : s.ids.length) +
+			",\"nameKeys\":" + (s == null ? 0 : s.nameKeys.length) +
+			",\"builds\":" + builds +
+			",\"buildTime\":" + (s == null ? 0 : s.buildTime) +
+			",\"age\":" + (s == null ? 0 : SystemClock.uptimeMillis() - s.builtAt) +
+			",\"searches\":" + searches + "}";
+	}
+
+	/*
+	 * Every contact whose key starts with the prefix, each one once, in key order
+	 */
+	private static int[] collect(String[] keys, int[] entries, String prefix)
+	{
+		int from = lowerBound(keys, prefix);
+		int to = from;
+		while (to < keys.length && keys[to].startsWith(prefix))
+			to++;
+
+		int[] result = new int[to - from];
+		int n = 0;
+		HashMap<Integer, Boolean> seen = new HashMap<Integer, Boolean>();
+		for (int i = from; i < to; i++)
+		{
+			if (seen.put(entries[i], Boolean.TRUE) == null)
+				result[n++] = entries[i];
+		}
+		if (n == result.length)
+			return result;
+		int[] trimmed = new int[n];
+		System.arraycopy(result, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	private static int lowerBound(String[] keys, String key)
+	{
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static boolean matches(Snapshot s, int e, String[] words, String digits)
+	{
+		if (words.length > 1)
+		{
+			String[] nameWords = splitWords(s.names[e]);
+			for (int w = 1; w < words.length; w++)
+			{
+				boolean hit = false;
+				for (int i = 0; i < nameWords.length && !hit; i++)
+					hit = nameWords[i].startsWith(words[w]);
+				if (!hit)
+					return false;
+			}
+		}
+		if (digits.length() > 0 && !digitsOf(s.phones[e]).endsWith(digits))
+			return false;
+		return true;
+	}
+
+	/*
+	 * Kick off a build on a worker thread.  If one is already running, it gets run again
+	 * when it's done, so the last change is never missed.
+	 */
+	private void rebuild()
+	{
+		synchronized (this)
+		{
+			if (!observing)
+				return;
+			if (building)
+			{
+				dirty = true;
+				return;
+			}
+			building = true;
+			dirty = false;
+		}
+		new Thread(new Runnable() {
+			public void run()
+			{
+				Snapshot s = null;
+				try {
+					s = build();
+				}
+				catch (SQLiteException ex)
+				{
+					Log.d(LOG_TAG, ex.getMessage());
+				}
+				boolean again;
+				synchronized (ContactIndex.this)
+				{
+					building = false;
+					if (s != null && observing)
+					{
+						snapshot = s;
+						builds++;
+					}
+					again = dirty && observing;
+				}
+				if (again)
+					mHandler.post(mRebuild);
+			}
+		}, LOG_TAG).start();
+	}
+
+	private Snapshot build()
+	{
+		long start = SystemClock.uptimeMillis();
+		String[] projection = new String[] {
+			People._ID,
+			People.NAME,
+			People.NUMBER,
+			People.PRIMARY_EMAIL_ID
+		};
+		HashMap<String, String> emails = mContacts.getEmails();
+
+		Cursor cur = null;
+		Snapshot s = new Snapshot();
+		try {
+			cur = mContacts.query("index", People.CONTENT_URI, projection, null, null, null);
+			int count = cur == null ? 0 : cur.getCount();
+			s.ids = new String[count];
+			s.names = new String[count];
+			s.phones = new String[count];
+			s.emails = new String[count];
+
+			int n = 0;
+			if (count > 0 && cur.moveToFirst())
+			{
+				int idColumn = cur.getColumnIndex(People._ID);
+				int nameColumn = cur.getColumnIndex(People.NAME);
+				int phoneColumn = cur.getColumnIndex(People.NUMBER);
+				int emailIdColumn = cur.getColumnIndex(People.PRIMARY_EMAIL_ID);
+				do {
+					String emailId = cur.getString(emailIdColumn);
+					String email = emailId == null ? null : emails.get(emailId);
+					s.ids[n] = cur.getString(idColumn);
+					s.names[n] = emptyIfNull(cur.getString(nameColumn));
+					s.phones[n] = emptyIfNull(cur.getString(phoneColumn));
+					s.emails[n] = emptyIfNull(email);
+					n++;
+				} while (n < count && cur.moveToNext());
+			}
+		}
+		finally
+		{
+			mContacts.close(cur);
+		}
+
+		/*
+		 * Name keys: every word of the name.  Phone keys: the digits, reversed.
+		 */
+		ArrayList<String> nameKeys = new ArrayList<String>();
+		ArrayList<Integer> nameEntries = new ArrayList<Integer>();
+		ArrayList<String> phoneKeys = new ArrayList<String>();
+		ArrayList<Integer> phoneEntries = new ArrayList<Integer>();
+		for (int e = 0; e < s.ids.length; e++)
+		{
+			String[] words = splitWords(s.names[e]);
+			for (int w = 0; w < words.length; w++)
+			{
+				nameKeys.add(words[w]);
+				nameEntries.add(e);
+			}
+			String digits = digitsOf(s.phones[e]);
+			if (digits.length() > 0)
+			{
+				phoneKeys.add(reverse(digits));
+				phoneEntries.add(e);
+			}
+		}
+		s.nameKeys = new String[nameKeys.size()];
+		s.nameEntries = new int[nameKeys.size()];
+		sortInto(nameKeys, nameEntries, s.nameKeys, s.nameEntries);
+		s.phoneKeys = new String[phoneKeys.size()];
+		s.phoneEntries = new int[phoneKeys.size()];
+		sortInto(phoneKeys, phoneEntries, s.phoneKeys, s.phoneEntries);
+
+		s.builtAt = SystemClock.uptimeMillis();
+		s.buildTime = s.builtAt - start;
+		Log.d(LOG_TAG, s.ids.length + " contacts, " + s.nameKeys.length + " name keys in " + s.buildTime + "ms");
+		return s;
+	}
+
+	/*
+	 * Sort the keys, carrying their entries along
+	 */
+	private static void sortInto(final ArrayList<String> keys, ArrayList<Integer> entries, String[] sortedKeys, int[] sortedEntries)
+	{
+		Integer[] order = new Integer[keys.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				return keys.get(a).compareTo(keys.get(b));
+			}
+		});
+		for (int i = 0; i < order.length; i++)
+		{
+			sortedKeys[i] = keys.get(order[i]);
+			sortedEntries[i] = entries.get(order[i]);
+		}
+	}
+
+	/*
+	 * Lower case words of letters and digits.  Everything else separates words.
+	 */
+	static String[] splitWords(String s)
+	{
+		ArrayList<String> words = new ArrayList<String>();
+		if (s != null)
+		{
+			StringBuilder word = new StringBuilder();
+			for (int i = 0; i <= s.length(); i++)
+			{
+				char c = i < s.length() ? s.charAt(i) : ' ';
+				if (Character.isLetterOrDigit(c))
+					word.append(Character.toLowerCase(c));
+				else if (word.length() > 0)
+				{
+					words.add(word.toString());
+					word.setLength(0);
+				}
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	static String digitsOf(String s)
+	{
+		if (s == null)
+			return "";
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9')
+				out.append(c);
+		}
+		return out.toString();
+	}
+
+	private static String reverse(String s)
+	{
+		return new StringBuilder(s).reverse().toString();
+	}
+
+	private static String emptyIfNull(String s)
+	{
+		return s == null ? "" : s;
+	}
+}
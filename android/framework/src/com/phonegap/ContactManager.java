@@ -1,15 +1,27 @@
 package com.phonegap;
 
+import java.util.HashMap;
+
 import android.provider.Contacts.ContactMethods;
 import android.provider.Contacts.People;
 import android.util.Log;
-import android.webkit.WebView;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 
+/*
+ * Contacts are read in a fixed number of bulk queries.  People come back in one query, and all
+ * of the e-mail addresses in another, and the two are joined here by id.  Nothing is looked up
+ * one row at a time, so a big address book costs two provider round trips instead of thousands.
+ *
+ * Results go to the page a page at a time, as one escaped JSON array per bridge call.  The paged
+ * API keeps its cursor open between pages, so the page can show the first few contacts while
+ * it decides whether it wants the rest.
+ */
+
 @SuppressWarnings("deprecation")
 public class ContactManager {
 	
@@ -22,36 +34,113 @@ public class ContactManager {
 	
 	private static final String LOG_TAG = "Contact Query";
 	Activity mApp;
-	WebView mView;
+	BridgeQueue mQueue;
 	Uri mPeople = android.provider.Contacts.People.CONTENT_URI;
 	Uri mPhone = android.provider.Contacts.Phones.CONTENT_URI;	
 	Uri mEmail = android.provider.Contacts.ContactMethods.CONTENT_URI;
 	
-	ContactManager(Activity app, WebView view)
+	// SQLite won't take more than 999 parameters in one statement
+	private static final int MAX_IN_ARGS = 500;
+	
+	private static final int PAGE_SIZE = 50;
+	
+	// Replays a page of contacts through the old one-contact-at-a-time callbacks
+	private static final String ADD_CONTACTS = "(function(c){for(var i=0;i<c.length;i++)navigator.ContactManager.droidAddContact(c[i].name,c[i].phone,c[i].email);})(";
+	private static final String FOUND_CONTACTS = "(function(c){for(var i=0;i<c.length;i++)navigator.Contacts.droidFoundContact(c[i].name,c[i].phone,c[i].email);})(";
+	
+	private static final String[] PEOPLE_PROJECTION = new String[] {
+		People._ID,
+		People.NAME,
+		People.NUMBER,
+		People.PRIMARY_EMAIL_ID
+	};
+	
+	/*
+	 * Query name -> {count, total ms, last ms, rows}
+	 */
+	private HashMap<String, long[]> timings = new HashMap<String, long[]>();
+	
+	/*
+	 * An open paged query.  The e-mail addresses are only loaded if they were asked for.
+	 */
+	private class ContactCursor
+	{
+		Cursor cur;
+		boolean id, name, phone, email;
+		HashMap<String, String> emails;
+	}
+	
+	private HashMap<Integer, ContactCursor> cursors = new HashMap<Integer, ContactCursor>();
+	private int nextCursor = 1;
+	
+	private ContactIndex mIndex;
+	
+	ContactManager(Activity app, BridgeQueue queue)
 	{
 		mApp = app;
-		mView = view;
+		mQueue = queue;
+		mIndex = new ContactIndex(this);
+	}
+	
+	/**
+	 * Type-ahead search from the in-memory index, without going to the provider.  The first
+	 * call starts building the index.
+	 *
+	 * @param text		words that have to start words of the name, in any order
+	 * @param number	digits the phone number has to end with, punctuation is ignored
+	 * @return a JSON array of {id, name, phone, email}, or null while the index is still being
+	 * 			built, in which case search() still works
+	 */
+	public String find(String text, String number, int limit)
+	{
+		mIndex.open();
+		return mIndex.search(text, number, limit);
+	}
+	
+	/**
+	 * Start building the index ahead of the first find()
+	 */
+	public void warmIndex()
+	{
+		mIndex.open();
+	}
+	
+	public String getIndexStats()
+	{
+		return mIndex.getStats();
+	}
+	
+	/**
+	 * Stop watching the address book and drop anything still open
+	 */
+	public void destroy()
+	{
+		mIndex.close();
+		synchronized (cursors)
+		{
+			for (ContactCursor c : cursors.values())
+				close(c.cur);
+			cursors.clear();
+		}
 	}
 			
 	// This is to add backwards compatibility to the OLD Contacts API\
 	public void getContactsAndSendBack()
 	{
-		String[] projection = new String[] {
-				People._ID,
-				People.NAME,
-				People.NUMBER,
-				People.PRIMARY_EMAIL_ID
-			};
-
+		Cursor myCursor = null;
 		try{
-			Cursor myCursor = mApp.managedQuery(mPeople, projection, 
+			myCursor = query("people", mPeople, PEOPLE_PROJECTION, 
 				null, null , People.NAME + " ASC");
 			processResults(myCursor, true);
 		}
 		catch (SQLiteException ex)
 		{
 			Log.d(LOG_TAG, ex.getMessage());
-		}		
+		}
+		finally
+		{
+			close(myCursor);
+		}
 	}
 	
 	public void search(String name, String npa, String email)
@@ -60,7 +149,16 @@ public class ContactManager {
 		if (email.length() > 0)
 			searchByEmail(email);		
 		else
-			searchPeople(name, npa);
+			searchPeople(name, npa, false);
+	}
+	
+	/**
+	 * Like search, but matching names that start with what's been typed so far.  What
+	 * quickFind falls back on while the index is still being built.
+	 */
+	public void searchPrefix(String text, String npa)
+	{
+		searchPeople(text, npa, true);
 	}
 	
 	private void searchByEmail(String email)
@@ -75,9 +173,10 @@ public class ContactManager {
 				 email
 		};
 		
+		Cursor myCursor = null;
 		try{
-			Cursor myCursor = mApp.managedQuery(mEmail, projection, 
-						"contact_methods." + ContactMethods.DATA + " = ?" + "AND contact_methods.kind = 1", variables , ContactMethods.DATA + " ASC");
+			myCursor = query("emailSearch", mEmail, projection, 
+						"contact_methods." + ContactMethods.DATA + " = ?" + " AND contact_methods.kind = 1", variables , ContactMethods.DATA + " ASC");
 			getMethodData(myCursor);
 						
 		}
@@ -85,10 +184,14 @@ public class ContactManager {
 		{
 			Log.d(LOG_TAG, ex.getMessage());
 		}
+		finally
+		{
+			close(myCursor);
+		}
 				
 	}
 	
-	private void searchPeople(String name, String number)
+	private void searchPeople(String name, String number, boolean prefix)
 	{
 			String conditions = "";
 		
@@ -97,6 +200,12 @@ public class ContactManager {
 				name = "%";
 				conditions += People.NAME + " LIKE ? AND ";
 			}
+			else if (prefix)
+			{
+				// What was typed is matched literally, wildcards and all
+				name = name.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+				conditions += People.NAME + " LIKE ? ESCAPE '\\' AND ";
+			}
 			else
 			{
 				conditions += People.NAME + " = ? AND ";
@@ -113,179 +222,408 @@ public class ContactManager {
 			
 			conditions += People.NUMBER + " LIKE ? ";
 			
-			String[] projection = new String[] {
-								People._ID,
-								People.NAME,
-								People.NUMBER,
-								People.PRIMARY_EMAIL_ID
-			};
-			
 			String[] variables = new String[] {
 					name, number
 			};
 			
+			Cursor myCursor = null;
 			try{
-				Cursor myCursor = mApp.managedQuery(mPeople, projection, 
+				myCursor = query("peopleSearch", mPeople, PEOPLE_PROJECTION, 
 								conditions, variables , People.NAME + " ASC");
 				processResults(myCursor, false);
 			}
 			catch (SQLiteException ex)
 			{
 					Log.d(LOG_TAG, ex.getMessage());
-			}		
+			}
+			finally
+			{
+				close(myCursor);
+			}
 	
 	}
 
+	/**
+	 * Open a paged query over the whole address book, sorted by name.
+	 *
+	 * @param fields	comma separated list of what to return for each contact, out of
+	 * 					id, name, phone and email.  Empty means all of them.
+	 * @return the id to ask for pages with, or -1 if the query failed
+	 */
+	public int openContacts(String fields)
+	{
+		ContactCursor c = new ContactCursor();
+		boolean all = fields == null || fields.trim().length() == 0;
+		String[] list = all ? new String[0] : fields.split(",");
+		for (int i = 0; i < list.length; i++)
+		{
+			String f = list[i].trim();
+			c.id |= f.equals("id");
+			c.name |= f.equals("name");
+			c.phone |= f.equals("phone");
+			c.email |= f.equals("email");
+		}
+		if (all)
+			c.id = c.name = c.phone = c.email = true;
+		
+		try{
+			c.cur = query("people", mPeople, PEOPLE_PROJECTION, null, null, People.NAME + " ASC");
+		}
+		catch (SQLiteException ex)
+		{
+			Log.d(LOG_TAG, ex.getMessage());
+			return -1;
+		}
+		if (c.cur == null)
+			return -1;
+		if (c.email)
+			c.emails = getEmails();
+		
+		synchronized (cursors)
+		{
+			int id = nextCursor++;
+			cursors.put(id, c);
+			return id;
+		}
+	}
+	
+	/**
+	 * Send one page to navigator.Contacts.droidGotPage(id, offset, contacts, more).
+	 * The cursor is closed once the last page has gone out.
+	 *
+	 * @param offset	where to start, or -1 to carry on from the previous page
+	 * @param limit		how many contacts to send
+	 */
+	public void getPage(int id, int offset, int limit)
+	{
+		ContactCursor c;
+		synchronized (cursors)
+		{
+			c = cursors.get(id);
+		}
+		if (c == null)
+		{
+			mQueue.enqueue("navigator.Contacts.droidPageFailed(" + id + ")");
+			return;
+		}
+		if (limit <= 0)
+			limit = PAGE_SIZE;
+		
+		int start = offset >= 0 ? offset : c.cur.getPosition() + 1;
+		StringBuilder page = new StringBuilder("navigator.Contacts.droidGotPage(");
+		page.append(id).append(',').append(start).append(',');
+		boolean more = false;
+		if (c.cur.moveToPosition(start))
+			more = appendPage(c.cur, c, c.emails, limit, page);
+		else
+			page.append("[]");
+		page.append(',').append(more).append(')');
+		mQueue.enqueue(page.toString());
+		
+		if (!more)
+			closeContacts(id);
+	}
+	
+	public void closeContacts(int id)
+	{
+		ContactCursor c;
+		synchronized (cursors)
+		{
+			c = cursors.remove(id);
+		}
+		if (c != null)
+			close(c.cur);
+	}
+	
+	/*
+	 * Write up to limit rows, starting at the current one, as a JSON array.  The cursor is left
+	 * on the last row written.  Returns true if there are rows after it.
+	 */
+	private boolean appendPage(Cursor cur, ContactCursor fields, HashMap<String, String> emails, int limit, StringBuilder out)
+	{
+		int idColumn = cur.getColumnIndex(People._ID);
+		int nameColumn = cur.getColumnIndex(People.NAME);
+		int phoneColumn = cur.getColumnIndex(People.NUMBER);
+		int emailIdColumn = cur.getColumnIndex(People.PRIMARY_EMAIL_ID);
+		
+		out.append('[');
+		int n = 0;
+		do {
+			if (n > 0)
+				out.append(',');
+			out.append('{');
+			boolean first = true;
+			if (fields.id)
+			{
+				out.append("\"id\":");
+				BridgeQueue.quote(cur.getString(idColumn), out);
+				first = false;
+			}
+			if (fields.name)
+			{
+				out.append(first ? "" : ",").append("\"name\":");
+				BridgeQueue.quote(emptyIfNull(cur.getString(nameColumn)), out);
+				first = false;
+			}
+			if (fields.phone)
+			{
+				out.append(first ? "" : ",").append("\"phone\":");
+				BridgeQueue.quote(emptyIfNull(cur.getString(phoneColumn)), out);
+				first = false;
+			}
+			if (fields.email)
+			{
+				String emailId = cur.getString(emailIdColumn);
+				String email = emailId == null || emails == null ? null : emails.get(emailId);
+				out.append(first ? "" : ",").append("\"email\":");
+				BridgeQueue.quote(emptyIfNull(email), out);
+			}
+			out.append('}');
+			n++;
+		} while (n < limit && cur.moveToNext());
+		out.append(']');
+		
+		// Peek at the next row without losing our place
+		if (n < limit)
+			return false;
+		boolean more = cur.moveToNext();
+		cur.moveToPrevious();
+		return more;
+	}
+	
+	private static String emptyIfNull(String s)
+	{
+		return s == null ? "" : s;
+	}
+	
 	private void processResults(Cursor cur, boolean all){
 		
-	    if (cur.moveToFirst()) {
+	    if (cur != null && cur.moveToFirst()) {
 
-	        String name; 
-	        String phoneNumber;	        
-	        String email_id;
-	        String email;
+	        ContactCursor fields = new ContactCursor();
+	        fields.name = fields.phone = fields.email = true;
 	        
-	        int nameColumn = cur.getColumnIndex(People.NAME);
-	        int phoneColumn = cur.getColumnIndex(People.NUMBER);
-	        int emailIdColumn = cur.getColumnIndex(People.PRIMARY_EMAIL_ID);
+	        // One query for every e-mail address, instead of one per person
+	        HashMap<String, String> emails = getEmails();
 	        
+	        // Code for backwards compatibility with the OLD Contacts API, which wants one
+	        // call per contact.  Each page still only crosses the bridge once.
+	        boolean more;
 	        do {
-	            // Get the field values
-	            name = cur.getString(nameColumn);	            
-	            phoneNumber = cur.getString(phoneColumn);
-	            email_id = cur.getString(emailIdColumn);
-	            if (email_id != null && email_id.length() > 0)
-	            	email = getEmail(email_id);
-	            else
-	            	email = "";
-	            
-	            // Code for backwards compatibility with the OLD Contacts API
-	            if (all)
-	            	mView.loadUrl("javascript:navigator.ContactManager.droidAddContact('" + name + "','" + phoneNumber + "','" + email +"')");	            	
-	            else
-	            	mView.loadUrl("javascript:navigator.Contacts.droidFoundContact('" + name + "','" + phoneNumber + "','" + email +"')");
-	            	            
-	        } while (cur.moveToNext());
+	            StringBuilder page = new StringBuilder(all ? ADD_CONTACTS : FOUND_CONTACTS);
+	            more = appendPage(cur, fields, emails, PAGE_SIZE, page);
+	            page.append(')');
+	            mQueue.enqueue(page.toString());
+	        } while (more && cur.moveToNext());
 	        if (all)
-	        	mView.loadUrl("javascript:navigator.ContactManager.droidDone()");
+	        	mQueue.enqueue("navigator.ContactManager.droidDone()");
 	        else
-	        	mView.loadUrl("javascript:navigator.Contacts.droidDone();");
+	        	mQueue.enqueue("navigator.Contacts.droidDone();");
 	    }
 	    else
 	    {
 	    	if(all)
-	    		mView.loadUrl("javascript:navigator.ContactManager.fail()");
+	    		mQueue.enqueue("navigator.ContactManager.fail()");
 	    	else
-	    		mView.loadUrl("javascript:navigator.Contacts.fail('None found!')");
+	    		mQueue.enqueue("navigator.Contacts.fail('None found!')");
 	    }
 	}	
 	
 	private void getMethodData(Cursor cur)
 	{        
-        ContactTriplet data = new ContactTriplet();
-        String id;    
+        ContactTriplet data;
         String email;
         
-	    if (cur.moveToFirst()) {
+	    if (cur != null && cur.moveToFirst()) {
 
-	        int idColumn = cur.getColumnIndex(ContactMethods._ID);
-	        int emailColumn = cur.getColumnIndex(ContactMethods.DATA);	        
+	        int personColumn = cur.getColumnIndex(ContactMethods.PERSON_ID);
+	        int emailColumn = cur.getColumnIndex(ContactMethods.DATA);
+	        
+	        // Read all the matches first, so the people can be fetched in one go
+	        int count = cur.getCount();
+	        String[] people = new String[count];
+	        String[] addresses = new String[count];
+	        int n = 0;
 	        do {
-	            // Get the field values	            
-	            id = cur.getString(idColumn);
-	            email = cur.getString(emailColumn);
-	            
-	            data = getContactData(id);
+	            people[n] = cur.getString(personColumn);
+	            addresses[n] = cur.getString(emailColumn);
+	            n++;
+	        } while (cur.moveToNext() && n < count);
+	        
+	        HashMap<String, ContactTriplet> found = getContactData(people, n);
+	        StringBuilder page = new StringBuilder(FOUND_CONTACTS).append('[');
+	        int inPage = 0;
+	        for (int i = 0; i < n; i++)
+	        {
+	            data = found.get(people[i]);
+	            email = addresses[i];
 	            if(data != null)
 	            {
-	            	data.email = email;	            
-	            	mView.loadUrl("javascript:navigator.Contacts.droidFoundContact('" + data.name + "','" + data.phone + "','" + data.email +"')");
-	            }	           
-	        } while (cur.moveToNext());
-	        mView.loadUrl("javascript:navigator.Contacts.droidDoneContacts();");	        
+	            	if (inPage > 0)
+	            		page.append(',');
+	            	page.append("{\"name\":");
+	            	BridgeQueue.quote(emptyIfNull(data.name), page);
+	            	page.append(",\"phone\":");
+	            	BridgeQueue.quote(emptyIfNull(data.phone), page);
+	            	page.append(",\"email\":");
+	            	BridgeQueue.quote(emptyIfNull(email), page);
+	            	page.append('}');
+	            	inPage++;
+	            }
+	            if (inPage == PAGE_SIZE || (i == n - 1 && inPage > 0))
+	            {
+	            	mQueue.enqueue(page.append("])").toString());
+	            	page.setLength(0);
+	            	page.append(FOUND_CONTACTS).append('[');
+	            	inPage = 0;
+	            }
+	        }
+	        mQueue.enqueue("navigator.Contacts.droidDoneContacts();");	        
 	    }	 
 	}		
 	
-	private ContactTriplet getContactData(String id) {
-		ContactTriplet data = null;
-		String[] projection = new String[] {
-				People._ID,
-				People.NAME,
-				People.NUMBER,
-				People.PRIMARY_EMAIL_ID
-		};
-
-		String[] variables = new String[] {
-				id
-		};
-
-		try{
-			Cursor myCursor = mApp.managedQuery(mPeople, projection, 
-				People.PRIMARY_EMAIL_ID + " = ?", variables , People.NAME + " ASC");
-			data = getTriplet(myCursor);
-		}
-		catch (SQLiteException ex)
+	/*
+	 * Fetch a set of people by id, a chunk of ids per query
+	 */
+	private HashMap<String, ContactTriplet> getContactData(String[] ids, int count) {
+		HashMap<String, ContactTriplet> result = new HashMap<String, ContactTriplet>();
+		
+		for (int offset = 0; offset < count; offset += MAX_IN_ARGS)
 		{
-			Log.d(LOG_TAG, ex.getMessage());
-		}		
+			int chunk = Math.min(MAX_IN_ARGS, count - offset);
+			StringBuilder conditions = new StringBuilder(People._ID + " IN (");
+			String[] variables = new String[chunk];
+			for (int i = 0; i < chunk; i++)
+			{
+				if (i > 0)
+					conditions.append(',');
+				conditions.append('?');
+				variables[i] = ids[offset + i];
+			}
+			conditions.append(')');
+			
+			Cursor cur = null;
+			try{
+				cur = query("peopleById", mPeople, PEOPLE_PROJECTION, 
+					conditions.toString(), variables , People.NAME + " ASC");
+				if (cur != null && cur.moveToFirst())
+				{
+					int idColumn = cur.getColumnIndex(People._ID);
+					int nameColumn = cur.getColumnIndex(People.NAME); 
+					int numberColumn = cur.getColumnIndex(People.NUMBER);
+					do {
+						ContactTriplet data = new ContactTriplet();
+						data.name = cur.getString(nameColumn);
+						data.phone = cur.getString(numberColumn);
+						result.put(cur.getString(idColumn), data);
+					} while (cur.moveToNext());
+				}
+			}
+			catch (SQLiteException ex)
+			{
+				Log.d(LOG_TAG, ex.getMessage());
+			}
+			finally
+			{
+				close(cur);
+			}
+		}
 		
-		return data;
+		return result;
 	}
 
-	private ContactTriplet getTriplet(Cursor cur) {
-		 ContactTriplet data = new ContactTriplet();         
-		 if (cur.moveToFirst()) {
-
-			 int nameColumn = cur.getColumnIndex(People.NAME); 
-		     int numberColumn = cur.getColumnIndex(People.NUMBER);	        
-		     do {
-		         	            
-		    	 data.name = cur.getString(nameColumn);
-		    	 data.phone = cur.getString(numberColumn);
-		    	 
-		     } while (cur.moveToNext());	       
-		 }
-		return data;
-	}
-
-	private String getEmailColumnData(Cursor cur)
-	{					        
-        String email = "";         
-	    if (cur != null && cur.moveToFirst()) {
-	        int emailColumn = cur.getColumnIndex(ContactMethods.DATA);	        
-	        do {
-	            // Get the field values	            
-	            email = cur.getString(emailColumn);	            	            
-	        } while (cur.moveToNext());	       
-	    }
-	    return email;
-	}
-	
-	private String getEmail(String id)
+	/*
+	 * Every e-mail address in the address book, by contact method id
+	 */
+	HashMap<String, String> getEmails()
 	{		
-		String email = "";		
+		HashMap<String, String> emails = new HashMap<String, String>();
 		String[] projection = new String[] {
 								ContactMethods._ID,
-								ContactMethods.DATA,
-								ContactMethods.KIND
+								ContactMethods.DATA
 							};
-		String[] variables = new String[] {
-				 id
-		};
 		
+		Cursor cur = null;
 		try
 		{
-			Cursor myCursor = mApp.managedQuery(mEmail, projection, 
-						"contact_methods." + ContactMethods._ID + " = ?" + " AND contact_methods.kind = 1", variables , ContactMethods.DATA + " ASC");
-			email = getEmailColumnData(myCursor);
+			cur = query("emails", mEmail, projection, 
+						"contact_methods.kind = 1", null, null);
+			if (cur != null && cur.moveToFirst())
+			{
+				int idColumn = cur.getColumnIndex(ContactMethods._ID);
+				int emailColumn = cur.getColumnIndex(ContactMethods.DATA);
+				do {
+					emails.put(cur.getString(idColumn), cur.getString(emailColumn));
+				} while (cur.moveToNext());
+			}
 		}
 		catch (SQLiteException ex)
 		{
 			Log.d(LOG_TAG, ex.getMessage());
 		}
+		finally
+		{
+			close(cur);
+		}
+		
+		return emails;		
+	}
+	
+	/*
+	 * All queries go through here, so they can be timed.  The cursors aren't managed, since
+	 * we're done with them as soon as the results are sent, so they have to be closed.
+	 */
+	Cursor query(String name, Uri uri, String[] projection, String selection, String[] args, String order)
+	{
+		long start = SystemClock.uptimeMillis();
+		Cursor cur = mApp.getContentResolver().query(uri, projection, selection, args, order);
+		// Make the provider actually run the query before we stop the clock
+		int rows = cur == null ? 0 : cur.getCount();
+		long elapsed = SystemClock.uptimeMillis() - start;
 		
-		return email;		
+		synchronized (timings)
+		{
+			long[] t = timings.get(name);
+			if (t == null)
+			{
+				t = new long[4];
+				timings.put(name, t);
+			}
+			t[0]++;
+			t[1] += elapsed;
+			t[2] = elapsed;
+			t[3] = rows;
+		}
+		Log.d(LOG_TAG, name + ": " + rows + " rows in " + elapsed + "ms");
+		return cur;
 	}
 	
+	void close(Cursor cur)
+	{
+		if (cur != null)
+			cur.close();
+	}
+	
+	/**
+	 * Returns the query timings as JSON, e.g. {"people":{"count":1,"total":120,"last":120,"rows":3000}}
+	 */
+	public String getQueryStats()
+	{
+		StringBuilder out = new StringBuilder("{");
+		synchronized (timings)
+		{
+			for (String name : timings.keySet())
+			{
+				long[] t = timings.get(name);
+				if (out.length() > 1)
+					out.append(',');
+				out.append('"').append(name).append("\":{\"count\":").append(t[0])
+					.append(",\"total\":").append(t[1])
+					.append(",\"last\":").append(t[2])
+					.append(",\"rows\":").append(t[3]).append('}');
+			}
+		}
+		return out.append('}').toString();
+	}
 	
 }
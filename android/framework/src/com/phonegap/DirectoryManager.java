@@ -1,13 +1,107 @@
 package com.phonegap;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.os.Environment;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
 
+/*
+ * Whole-tree operations run as jobs on a small worker pool, so the page gets its answer right
+ * away and hears about progress and the result through navigator.file.treeProgress,
+ * treeEntries and treeDone.  Progress is sent at most every PROGRESS_INTERVAL ms and listings
+ * go out a batch at a time, however many files there are.
+ *
+ * Nothing is left half done where the page can see it.  A tree being deleted is renamed out of
+ * the way first and then emptied in the background, and a copy is built next to its
+ * destination and only renamed into place once it's complete.  Anything a cancelled or
+ * interrupted job leaves behind has a tombstone name, and is swept up by the next job.
+ */
+
 public class DirectoryManager {
 	
+	private static final String LOG_TAG = "DirectoryManager";
+	private static final int POOL_SIZE = 2;
+	private static final int PROGRESS_INTERVAL = 250;
+	private static final int LIST_BATCH = 200;
+	private static final int COPY_BUFFER = 32 * 1024;
+	private static final String TOMBSTONE = ".phonegap-deleting-";
+	private static final String PARTIAL = ".phonegap-partial-";
+	
+	/*
+	 * What a job does
+	 */
+	private static final int DELETE = 0;
+	private static final int COPY = 1;
+	private static final int MOVE = 2;
+	private static final int LIST = 3;
+	private static final int USAGE = 4;
+	
+	/*
+	 * One tree operation, and what it has got through so far
+	 */
+	private class Job implements Runnable
+	{
+		int id;
+		int op;
+		File source;
+		File dest;
+		boolean recursive;
+		volatile boolean cancelled = false;
+		
+		long files = 0;
+		long dirs = 0;
+		long bytes = 0;
+		long lastProgress = 0;
+		StringBuilder entries;
+		int entryCount = 0;
+		
+		public void run()
+		{
+			try {
+				sweep(source.getParentFile());
+				String result = perform(this);
+				finish(this, true, result);
+			} catch (CancelledException e) {
+				finish(this, false, BridgeQueue.quote("Cancelled"));
+			} catch (IOException e) {
+				finish(this, false, BridgeQueue.quote(e.getMessage() == null ? "IO error" : e.getMessage()));
+			} catch (RuntimeException e) {
+				// A SecurityException on a protected path, say.  Still a failed job, not a crash.
+				Log.d(LOG_TAG, "Job " + id + ": " + e);
+				finish(this, false, BridgeQueue.quote("Could not complete the operation"));
+			}
+		}
+	}
+	
+	private static class CancelledException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+	}
+	
+	BridgeQueue mQueue;
+	private ExecutorService mPool;
+	private HashMap<Integer, Job> jobs = new HashMap<Integer, Job>();
+	private int nextJob = 1;
+	
+	// Tombstones and partial copies some job is working on right now, so sweep leaves them be
+	private HashSet<String> owned = new HashSet<String>();
+	
+	DirectoryManager(BridgeQueue queue)
+	{
+		mQueue = queue;
+	}
+	
 	protected boolean testFileExists (String name){
 		boolean status;
 		if ((testSaveLocationExists())&&(!name.equals(""))){
@@ -60,31 +154,25 @@ public class DirectoryManager {
 		return status;
 	}
 	
+	/*
+	 * The directory disappears straight away and its contents are deleted in the background,
+	 * however deep the tree is.
+	 */
 	protected boolean deleteDirectory(String fileName){
 		boolean status;
-		SecurityManager checker = new SecurityManager();
 			
 		if ((testSaveLocationExists())&&(!fileName.equals(""))){
 		
 			File path = Environment.getExternalStorageDirectory();
             File newPath = constructFilePaths(path.toString(), fileName);
-			checker.checkDelete(newPath.toString());
 			if(newPath.isDirectory()){
-				String[] listfile = newPath.list();
-				// delete all files within the specified directory and then delete the directory
-				try{
-					for (int i=0; i < listfile.length; i++){
-						File deletedFile = new File (newPath.toString()+"/"+listfile[i].toString());
-						deletedFile.delete();
-					}
-					newPath.delete();
+				File tombstone = bury(newPath);
+				status = tombstone != null;
+				if (status)
+				{
 					Log.i("DirectoryManager deleteDirectory", fileName);
-					status = true;
-				}catch (Exception e){
-					e.printStackTrace();
-					status = false;
+					start(DELETE, tombstone, null, true, false);
 				}
-				
 			}else
 				status = false;
 		}else
@@ -94,13 +182,11 @@ public class DirectoryManager {
 	
 	protected boolean deleteFile(String fileName){
 		boolean status;
-		SecurityManager checker = new SecurityManager();
 			
 		if ((testSaveLocationExists())&&(!fileName.equals(""))){
 		
 			File path = Environment.getExternalStorageDirectory();
             File newPath = constructFilePaths(path.toString(), fileName);
-			checker.checkDelete(newPath.toString());
 			if (newPath.isFile()){
 				try {
 					Log.i("DirectoryManager deleteFile", fileName);
@@ -117,6 +203,438 @@ public class DirectoryManager {
 		return status;
 	}
 	
+	/**
+	 * Delete a file or a whole tree.
+	 *
+	 * @return the job id, or -1 if there's nothing there
+	 */
+	protected int deleteTree(String name)
+	{
+		File target = resolve(name);
+		if (target == null || !target.exists())
+			return -1;
+		File tombstone = bury(target);
+		if (tombstone == null)
+			return -1;
+		return start(DELETE, tombstone, null, true, true);
+	}
+	
+	protected int copyTree(String from, String to)
+	{
+		File source = resolve(from);
+		File dest = resolve(to);
+		if (source == null || dest == null || !source.exists() || dest.exists() || isWithin(dest, source))
+			return -1;
+		return start(COPY, source, dest, true, true);
+	}
+	
+	protected int moveTree(String from, String to)
+	{
+		File source = resolve(from);
+		File dest = resolve(to);
+		if (source == null || dest == null || !source.exists() || dest.exists() || isWithin(dest, source))
+			return -1;
+		return start(MOVE, source, dest, true, true);
+	}
+	
+	/**
+	 * List a directory, or everything under it if recursive is set.  Entries go to
+	 * navigator.file.treeEntries(id, [{path, dir, size, modified}, ...]) a batch at a time.
+	 */
+	protected int listTree(String name, boolean recursive)
+	{
+		File dir = resolve(name);
+		if (dir == null || !dir.isDirectory())
+			return -1;
+		return start(LIST, dir, null, recursive, true);
+	}
+	
+	/**
+	 * Total up the files, directories and bytes under a path
+	 */
+	protected int diskUsage(String name)
+	{
+		File target = resolve(name);
+		if (target == null || !target.exists())
+			return -1;
+		return start(USAGE, target, null, true, true);
+	}
+	
+	/**
+	 * Stop a job.  A cancelled delete finishes later from its tombstone, and a cancelled copy
+	 * is removed, so either way nothing half done is left in view.
+	 */
+	protected void cancel(int id)
+	{
+		synchronized (jobs)
+		{
+			Job job = jobs.get(id);
+			if (job != null)
+				job.cancelled = true;
+		}
+	}
+	
+	/*
+	 * Whether dest is dir itself or somewhere under it.  A tree copied or moved into itself
+	 * would never finish, or would lose the source.  Canonical paths, so neither ".." nor a
+	 * symlink hides it.
+	 */
+	private static boolean isWithin(File dest, File dir)
+	{
+		try {
+			String d = dest.getCanonicalPath();
+			String p = dir.getCanonicalPath();
+			return d.equals(p) || d.startsWith(p.endsWith(File.separator) ? p : p + File.separator);
+		} catch (IOException e) {
+			// Can't tell, so don't risk it
+			return true;
+		}
+	}
+	
+	private File resolve(String name)
+	{
+		if (!testSaveLocationExists() || name == null || name.equals(""))
+			return null;
+		return constructFilePaths(Environment.getExternalStorageDirectory().toString(), name);
+	}
+	
+	private synchronized ExecutorService getPool()
+	{
+		if (mPool == null)
+		{
+			mPool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, LOG_TAG);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return mPool;
+	}
+	
+	private int start(int op, File source, File dest, boolean recursive, boolean report)
+	{
+		Job job = new Job();
+		job.op = op;
+		job.source = source;
+		job.dest = dest;
+		job.recursive = recursive;
+		synchronized (jobs)
+		{
+			job.id = report ? nextJob++ : 0;
+			if (report)
+				jobs.put(job.id, job);
+		}
+		getPool().execute(job);
+		return job.id;
+	}
+	
+	/*
+	 * Rename something to a hidden name in the same directory, so it's gone from its old path
+	 * in one step
+	 */
+	private File bury(File target)
+	{
+		File tombstone = new File(target.getParentFile(), TOMBSTONE + SystemClock.uptimeMillis() + "-" + target.getName());
+		claim(tombstone);
+		if (target.renameTo(tombstone))
+			return tombstone;
+		release(tombstone);
+		return null;
+	}
+	
+	private boolean claim(File f)
+	{
+		synchronized (owned)
+		{
+			return owned.add(f.getPath());
+		}
+	}
+	
+	private void release(File f)
+	{
+		synchronized (owned)
+		{
+			owned.remove(f.getPath());
+		}
+	}
+	
+	/*
+	 * Finish off whatever earlier jobs left behind in a directory
+	 */
+	private void sweep(File dir)
+	{
+		String[] names = dir == null ? null : dir.list();
+		if (names == null)
+			return;
+		for (int i = 0; i < names.length; i++)
+		{
+			if (!names[i].startsWith(TOMBSTONE) && !names[i].startsWith(PARTIAL))
+				continue;
+			File leftover = new File(dir, names[i]);
+			if (!claim(leftover))
+				continue;
+			try {
+				Job job = new Job();
+				job.op = DELETE;
+				delete(job, leftover);
+			} catch (CancelledException e) {
+				// Can't happen, nobody can cancel this one
+			} finally {
+				release(leftover);
+			}
+		}
+	}
+	
+	private String perform(Job job) throws IOException, CancelledException
+	{
+		switch (job.op)
+		{
+			case DELETE:
+				try {
+					delete(job, job.source);
+				} finally {
+					release(job.source);
+				}
+				break;
+			case COPY:
+				copyIntoPlace(job, job.source, job.dest);
+				break;
+			case MOVE:
+				// Same volume: one rename and we're done
+				if (!job.source.renameTo(job.dest))
+				{
+					copyIntoPlace(job, job.source, job.dest);
+					File tombstone = bury(job.source);
+					if (tombstone != null)
+					{
+						Job cleanup = new Job();
+						cleanup.op = DELETE;
+						try {
+							delete(cleanup, tombstone);
+						} finally {
+							release(tombstone);
+						}
+					}
+				}
+				break;
+			case LIST:
+				job.entries = new StringBuilder();
+				list(job, job.source, job.recursive);
+				flushEntries(job);
+				break;
+			case USAGE:
+				measure(job, job.source);
+				break;
+		}
+		return "{\"files\":" + job.files + ",\"dirs\":" + job.dirs + ",\"bytes\":" + job.bytes + "}";
+	}
+	
+	/*
+	 * The walks below use an explicit stack, so a deep tree can't overflow the thread's stack
+	 */
+	private void delete(Job job, File root) throws CancelledException
+	{
+		ArrayList<File> stack = new ArrayList<File>();
+		ArrayList<File> dirs = new ArrayList<File>();
+		stack.add(root);
+		while (!stack.isEmpty())
+		{
+			File f = stack.remove(stack.size() - 1);
+			File[] children = f.listFiles();
+			if (children == null)
+			{
+				checkpoint(job);
+				job.bytes += f.length();
+				if (f.delete())
+					job.files++;
+				continue;
+			}
+			dirs.add(f);
+			for (int i = 0; i < children.length; i++)
+				stack.add(children[i]);
+		}
+		// Children were added after their parents, so go backwards
+		for (int i = dirs.size() - 1; i >= 0; i--)
+		{
+			if (dirs.get(i).delete())
+				job.dirs++;
+		}
+	}
+	
+	/*
+	 * Copy to a hidden name beside the destination, then rename it into place
+	 */
+	private void copyIntoPlace(Job job, File source, File dest) throws IOException, CancelledException
+	{
+		File partial = new File(dest.getParentFile(), PARTIAL + SystemClock.uptimeMillis() + "-" + dest.getName());
+		File claimed = partial;
+		claim(claimed);
+		try {
+			copy(job, source, partial);
+			if (!partial.renameTo(dest))
+				throw new IOException("Could not rename into place");
+			partial = null;
+		} finally {
+			if (partial != null && partial.exists())
+			{
+				Job cleanup = new Job();
+				cleanup.op = DELETE;
+				delete(cleanup, partial);
+			}
+			release(claimed);
+		}
+	}
+	
+	private void copy(Job job, File source, File dest) throws IOException, CancelledException
+	{
+		ArrayList<File[]> stack = new ArrayList<File[]>();
+		stack.add(new File[] { source, dest });
+		byte[] buffer = new byte[COPY_BUFFER];
+		while (!stack.isEmpty())
+		{
+			File[] pair = stack.remove(stack.size() - 1);
+			checkpoint(job);
+			if (pair[0].isDirectory())
+			{
+				if (!pair[1].mkdirs())
+					throw new IOException("Could not create " + pair[1].getName());
+				job.dirs++;
+				String[] names = pair[0].list();
+				for (int i = 0; names != null && i < names.length; i++)
+					stack.add(new File[] { new File(pair[0], names[i]), new File(pair[1], names[i]) });
+			}
+			else
+			{
+				copyFile(job, pair[0], pair[1], buffer);
+				job.files++;
+			}
+		}
+	}
+	
+	private void copyFile(Job job, File source, File dest, byte[] buffer) throws IOException, CancelledException
+	{
+		FileInputStream in = new FileInputStream(source);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(dest);
+			int n;
+			while ((n = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, n);
+				job.bytes += n;
+				checkpoint(job);
+			}
+		} finally {
+			in.close();
+			if (out != null)
+				out.close();
+		}
+		dest.setLastModified(source.lastModified());
+	}
+	
+	private void list(Job job, File root, boolean recursive) throws CancelledException
+	{
+		String base = Environment.getExternalStorageDirectory().getPath();
+		ArrayList<File> stack = new ArrayList<File>();
+		stack.add(root);
+		while (!stack.isEmpty())
+		{
+			File dir = stack.remove(stack.size() - 1);
+			File[] children = dir.listFiles();
+			for (int i = 0; children != null && i < children.length; i++)
+			{
+				checkpoint(job);
+				File f = children[i];
+				boolean isDir = f.isDirectory();
+				if (isDir)
+				{
+					job.dirs++;
+					if (recursive)
+						stack.add(f);
+				}
+				else
+				{
+					job.files++;
+					job.bytes += f.length();
+				}
+				
+				String path = f.getPath();
+				if (path.startsWith(base))
+					path = path.substring(base.length());
+				StringBuilder out = job.entries;
+				out.append(job.entryCount == 0 ? "" : ",").append("{\"path\":");
+				BridgeQueue.quote(path, out);
+				out.append(",\"dir\":").append(isDir)
+					.append(",\"size\":").append(isDir ? 0 : f.length())
+					.append(",\"modified\":").append(f.lastModified()).append('}');
+				if (++job.entryCount == LIST_BATCH)
+					flushEntries(job);
+			}
+		}
+	}
+	
+	private void flushEntries(Job job)
+	{
+		if (job.entryCount == 0)
+			return;
+		mQueue.enqueue("navigator.file.treeEntries(" + job.id + ",[" + job.entries + "])");
+		job.entries.setLength(0);
+		job.entryCount = 0;
+	}
+	
+	private void measure(Job job, File root) throws CancelledException
+	{
+		ArrayList<File> stack = new ArrayList<File>();
+		stack.add(root);
+		while (!stack.isEmpty())
+		{
+			File f = stack.remove(stack.size() - 1);
+			checkpoint(job);
+			File[] children = f.listFiles();
+			if (children == null)
+			{
+				job.files++;
+				job.bytes += f.length();
+				continue;
+			}
+			job.dirs++;
+			for (int i = 0; i < children.length; i++)
+				stack.add(children[i]);
+		}
+	}
+	
+	/*
+	 * Called all the way through every walk: stops the job if it was cancelled, and sends
+	 * progress now and then
+	 */
+	private void checkpoint(Job job) throws CancelledException
+	{
+		if (job.cancelled)
+			throw new CancelledException();
+		if (job.id == 0)
+			return;
+		long now = SystemClock.uptimeMillis();
+		if (now - job.lastProgress >= PROGRESS_INTERVAL)
+		{
+			job.lastProgress = now;
+			mQueue.enqueue("navigator.file.treeProgress(" + job.id + "," + job.files + "," + job.dirs + "," + job.bytes + ")");
+		}
+	}
+	
+	private void finish(Job job, boolean ok, String result)
+	{
+		if (job.id == 0)
+			return;
+		synchronized (jobs)
+		{
+			jobs.remove(job.id);
+		}
+		mQueue.enqueue("navigator.file.treeDone(" + job.id + "," + ok + "," + result + ")");
+	}
+	
 	private File constructFilePaths (String file1, String file2){
 		File newPath;
 		newPath = new File(file1+"/"+file2);
@@ -25,10 +25,13 @@ package com.phonegap;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ViewGroup;
@@ -39,6 +42,7 @@ import android.webkit.WebChromeClient;
 import android.webkit.WebSettings;
 import android.webkit.WebStorage;
 import android.webkit.WebView;
+import android.webkit.WebViewClient;
 import android.webkit.WebSettings.LayoutAlgorithm;
 import android.widget.LinearLayout;
 import android.os.Build.*;
@@ -50,6 +54,8 @@ public class DroidGap extends Activity {
 	private LinearLayout root;	
 	
 	private String uri;
+	private BridgeQueue mQueue;
+	private SensorHub mSensors;
 	private PhoneGap gap;
 	private GeoBroker geo;
 	private AccelListener accel;
@@ -57,6 +63,7 @@ public class DroidGap extends Activity {
 	private ContactManager mContacts;
 	private FileUtils fs;
 	private NetworkManager netMan;
+	private HttpHandler mHttp;
 	private CompassListener mCompass;
 	private WebViewReflect eclairCheck;
 	
@@ -91,6 +98,8 @@ public class DroidGap extends Activity {
         else
         	appView.setWebChromeClient(new GapClient(this));
         
+        appView.setWebViewClient(new GapViewClient());
+        
         appView.setInitialScale(100);
         appView.setVerticalScrollBarEnabled(false);
         
@@ -112,6 +121,29 @@ public class DroidGap extends Activity {
         setContentView(root);                        
     }
 	
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+		if (gap != null)
+			gap.destroy();
+		if (launcher != null)
+			launcher.destroy();
+		if (mContacts != null)
+			mContacts.destroy();
+		if (fs != null)
+			fs.closeAll();
+		if (netMan != null)
+			netMan.destroy();
+		if (mHttp != null)
+			mHttp.destroy();
+		if (geo != null)
+			geo.destroy();
+		if (mSensors != null)
+			mSensors.destroy();
+		HttpPool.shutdown();
+	}
+	
 	@Override
     public void onConfigurationChanged(Configuration newConfig) {
       //don't reload the current page when the orientation is changed
@@ -120,32 +152,76 @@ public class DroidGap extends Activity {
     
     private void bindBrowser(WebView appView)
     {
-    	gap = new PhoneGap(this, appView);
-    	geo = new GeoBroker(appView, this);
-    	accel = new AccelListener(this, appView);
-    	launcher = new CameraLauncher(appView, this);
-    	mContacts = new ContactManager(this, appView);
-    	fs = new FileUtils(appView);
-    	netMan = new NetworkManager(this, appView);
-    	mCompass = new CompassListener(this, appView);
+    	// Everything going back into the page goes through the queue, so it can be batched
+    	mQueue = new BridgeQueue(appView);
+    	mSensors = new SensorHub(this, mQueue);
+    	gap = new PhoneGap(this, appView, mQueue);
+    	mHttp = new HttpHandler(mQueue);
+    	gap.http = mHttp;
+    	geo = new GeoBroker(mQueue, this);
+    	accel = new AccelListener(mSensors);
+    	launcher = new CameraLauncher(mQueue, this);
+    	mContacts = new ContactManager(this, mQueue);
+    	fs = new FileUtils(mQueue);
+    	netMan = new NetworkManager(this, mQueue);
+    	mCompass = new CompassListener(mSensors);
     	
     	// This creates the new javascript interfaces for PhoneGap
-    	appView.addJavascriptInterface(gap, "DroidGap");
-    	appView.addJavascriptInterface(geo, "Geo");
-    	appView.addJavascriptInterface(accel, "Accel");
-    	appView.addJavascriptInterface(launcher, "GapCam");
-    	appView.addJavascriptInterface(mContacts, "ContactHook");
-    	appView.addJavascriptInterface(fs, "FileUtil");
-    	appView.addJavascriptInterface(netMan, "NetworkManager");
-    	appView.addJavascriptInterface(mCompass, "CompassHook");
+    	expose(mQueue, "GapQueue");
+    	expose(gap, "DroidGap");
+    	expose(geo, "Geo");
+    	expose(accel, "Accel");
+    	expose(launcher, "GapCam");
+    	expose(mContacts, "ContactHook");
+    	expose(fs, "FileUtil");
+    	expose(netMan, "NetworkManager");
+    	expose(mHttp, "GapHttp");
+    	expose(mCompass, "CompassHook");
     }
            
  
+	/*
+	 * Everything the page can call goes in as a Javascript interface, and to the queue so
+	 * PhoneGap.invoke can reach it too
+	 */
+	private void expose(Object obj, String name)
+	{
+		appView.addJavascriptInterface(obj, name);
+		mQueue.register(name, obj);
+	}
+	
 	public void loadUrl(String url)
 	{
 		appView.loadUrl(url);
 	}
 
+	/*
+	 * A new page has no PhoneGap.drain until phonegap.js turns pull mode back on, so results
+	 * are pushed until then.  Links still go to whatever handles them, as they did without a
+	 * client.
+	 */
+	public class GapViewClient extends WebViewClient {
+		
+		@Override
+		public void onPageStarted(WebView view, String url, Bitmap favicon)
+		{
+			if (mQueue != null)
+				mQueue.setPull(false);
+		}
+		
+		@Override
+		public boolean shouldOverrideUrlLoading(WebView view, String url)
+		{
+			try {
+				startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
+				return true;
+			} catch (ActivityNotFoundException e) {
+				// Nothing else handles it, so the WebView has a go, as it did with no client
+				return false;
+			}
+		}
+	}
+	
   /**
     * Provides a hook for calling "alert" from javascript. Useful for
     * debugging your javascript.
@@ -203,25 +279,16 @@ public class DroidGap extends Activity {
 	
     	    	
     // This is required to start the camera activity!  It has to come from the previous activity
-    public void startCamera(int quality)
+    public void startCamera(Intent i)
     {
-    Intent i = new Intent(this, CameraPreview.class);
-    	i.setAction("android.intent.action.PICK");
-    	i.putExtra("quality", quality);
     	startActivityForResult(i, 0);
     }
     
     protected void onActivityResult(int requestCode, int resultCode, Intent intent)
     {
-    	String data;
     	super.onActivityResult(requestCode, resultCode, intent);
-    	if (resultCode == RESULT_OK)
-    	{
-    		data = intent.getStringExtra("picture");    	     
-    		// Send the graphic back to the class that needs it
-    		launcher.processPicture(data);
-    	}
-    	else
+    	// The pictures themselves go to the page as they're processed
+    	if (resultCode != RESULT_OK)
     	{
     		launcher.failPicture("Did not complete!");
     	}
@@ -0,0 +1,70 @@
+package com.phonegap;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/*
+ * ExifInterface only turned up in Android 2.0, so it's looked up by reflection.  On older
+ * devices every picture is taken to be upright already.
+ */
+
+public class ExifReflect {
+	private static final String TAG_ORIENTATION = "Orientation";
+	private static final int ORIENTATION_ROTATE_90 = 6;
+	private static final int ORIENTATION_ROTATE_180 = 3;
+	private static final int ORIENTATION_ROTATE_270 = 8;
+
+	private static Constructor<?> mExifInterface;
+	private static Method mExifInterface_getAttributeInt;
+	static
+	{
+		checkCompatibility();
+	}
+
+	public static void checkCompatibility() {
+		try {
+			Class<?> exif = Class.forName("android.media.ExifInterface");
+			mExifInterface = exif.getConstructor(new Class[] { String.class });
+			mExifInterface_getAttributeInt = exif.getMethod(
+					"getAttributeInt", new Class[] { String.class, int.class });
+			/* success, this is a newer device */
+		} catch (ClassNotFoundException cnfe) {
+			/* failure, must be older device */
+		} catch (NoSuchMethodException nsme) {
+			/* failure, must be older device */
+			mExifInterface = null;
+		}
+	}
+
+	/**
+	 * How far clockwise, in degrees, the picture in a JPEG file has to be turned to be upright.
+	 * 0 if it's upright already or we can't tell.
+	 */
+	public static int getRotation(String path) {
+		if (mExifInterface == null)
+			return 0;
+		try {
+			Object exif = mExifInterface.newInstance(new Object[] { path });
+			Object orientation = mExifInterface_getAttributeInt.invoke(exif, TAG_ORIENTATION, Integer.valueOf(1));
+			switch (((Integer) orientation).intValue())
+			{
+				case ORIENTATION_ROTATE_90:
+					return 90;
+				case ORIENTATION_ROTATE_180:
+					return 180;
+				case ORIENTATION_ROTATE_270:
+					return 270;
+				default:
+					return 0;
+			}
+		} catch (InstantiationException e) {
+			return 0;
+		} catch (IllegalAccessException e) {
+			return 0;
+		} catch (InvocationTargetException e) {
+			// The file has no EXIF we can read
+			return 0;
+		}
+	}
+}
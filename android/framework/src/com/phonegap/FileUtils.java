@@ -1,20 +1,81 @@
 package com.phonegap;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
-import android.webkit.WebView;
+import org.apache.commons.codec.binary.Base64;
+
+/*
+ * Files are decoded with a real charset decoder, in fixed size chunks, so nothing is read a
+ * line at a time and nothing gets quadratic.
+ *
+ * readChunks() streams a file, or a byte range of it, to the page from a worker thread.  Only a
+ * few chunks are allowed to be in flight at once: the page acknowledges each one with
+ * ackChunk(), and the reader waits for that before it decodes any more, so a big file never
+ * piles up in the bridge queue.
+ *
+ * For random access into big files there are ranged reads and writes on a FileChannel.  Bytes
+ * cross the bridge as base64.  A file can be opened once and then addressed by handle, so
+ * paging through it doesn't reopen it on every call.
+ */
 
 public class FileUtils {
 
+	private static final String DEFAULT_ENCODING = "UTF-8";
+	private static final int DEFAULT_CHUNK = 32 * 1024;
+	private static final int MAX_CHUNK = 256 * 1024;
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int WINDOW = 4;
+	// How long a read waits for the page to acknowledge a chunk before giving up
+	private static final long ACK_TIMEOUT = 30000;
+	
+	// Largest range that can be read in one call, since it's returned as one string
+	private static final int MAX_RANGE = 1024 * 1024;
 
-	WebView mView;
+	BridgeQueue mQueue;
+	AsyncFileWriter mWriter;
 	DirectoryManager fileManager;
 	FileReader f_in;
 	FileWriter f_out;
 	
-	FileUtils(WebView view)
+	/*
+	 * A read in progress, and how many of its chunks the page hasn't acknowledged yet
+	 */
+	private class ChunkedRead
+	{
+		int id;
+		int inFlight = 0;
+		boolean cancelled = false;
+	}
+	
+	private HashMap<Integer, ChunkedRead> reads = new HashMap<Integer, ChunkedRead>();
+	private int nextRead = 1;
+	
+	/*
+	 * A file opened by handle, and whether it was opened for writing
+	 */
+	private static class OpenFile
+	{
+		RandomAccessFile file;
+		boolean writable;
+		
+		OpenFile(RandomAccessFile f, boolean w)
+		{
+			file = f;
+			writable = w;
+		}
+	}
+	
+	private HashMap<Integer, OpenFile> handles = new HashMap<Integer, OpenFile>();
+	private int nextHandle = 1;
+	
+	FileUtils(BridgeQueue queue)
 	{
-		mView = view;
+		mQueue = queue;
+		mWriter = new AsyncFileWriter(queue);
+		fileManager = new DirectoryManager(queue);
 	}
 	
     public int testSaveLocationExists(){
@@ -79,45 +140,509 @@ public class FileUtils {
             return 1;
     } 
 	
+    /**
+     * Tree operations.  Each returns a job id, or -1 if it couldn't start, and reports through
+     * navigator.file.treeProgress(id, files, dirs, bytes) and treeDone(id, ok, result).
+     */
+    public int deleteTree(String path)
+    {
+    	return fileManager.deleteTree(path);
+    }
+    
+    public int copyTree(String from, String to)
+    {
+    	return fileManager.copyTree(from, to);
+    }
+    
+    public int moveTree(String from, String to)
+    {
+    	return fileManager.moveTree(from, to);
+    }
+    
+    public int listTree(String path, boolean recursive)
+    {
+    	return fileManager.listTree(path, recursive);
+    }
+    
+    public int diskUsage(String path)
+    {
+    	return fileManager.diskUsage(path);
+    }
+    
+    public void cancelTree(int id)
+    {
+    	fileManager.cancel(id);
+    }
+	
     public String read(String filename)
     {
-    	String data = "";
-    	String output = "";
+    	String data;
+    	Reader in = null;
     	try {
-    		FileInputStream fstream = new FileInputStream(filename);
-			DataInputStream in = new DataInputStream(fstream);
-			  while (in.available() !=0)
-				{                 
-					data += in.readLine();
-				}
-			  
+    		File file = new File(filename);
+    		in = new InputStreamReader(new FileInputStream(file), DEFAULT_ENCODING);
+    		StringBuilder out = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+    		char[] buffer = new char[BUFFER_SIZE];
+    		int n;
+    		while ((n = in.read(buffer)) != -1)
+    			out.append(buffer, 0, n);
+    		data = out.toString();
 		} catch (FileNotFoundException e) {
 			data = "FAIL: File not found";
 		} catch (IOException e) {
 			data = "FAIL: IO ERROR";		
+		} finally {
+			closeQuietly(in);
 		}
 		
-		mView.loadUrl("javascript:navigator.file.hasRead('" + data + "')");
+		mQueue.enqueue("navigator.file.hasRead(" + BridgeQueue.quote(data) + ")");
     	return data;
     }
     
-    public int write(String filename, String data, boolean append)
+    /**
+     * Stream a file to navigator.file.gotChunk(id, data, position, done), where position is
+     * how far into the file, in bytes, the reader has got.  The decoder reads ahead, so it
+     * can be a buffer ahead of the text delivered so far.  Failures go to
+     * navigator.file.chunkFailed(id, message).
+     *
+     * @param encoding	charset to decode with, UTF-8 if empty
+     * @param offset	byte offset to start at.  It should fall on a character boundary.
+     * @param length	number of bytes to read, or -1 for the rest of the file
+     * @param chunkSize	characters per chunk, or 0 for the default
+     * @return the id the chunks will be delivered with
+     */
+    public int readChunks(final String filename, String encoding, final long offset, final long length, int chunkSize)
+    {
+    	final String charset = encoding == null || encoding.length() == 0 ? DEFAULT_ENCODING : encoding;
+    	// At least two, so a held high surrogate always leaves room for its other half
+    	final int size = chunkSize <= 0 ? DEFAULT_CHUNK : Math.max(2, Math.min(chunkSize, MAX_CHUNK));
+    	final ChunkedRead read = new ChunkedRead();
+    	synchronized (reads)
+    	{
+    		read.id = nextRead++;
+    		reads.put(read.id, read);
+    	}
+    	new Thread(new Runnable() {
+    		public void run()
+    		{
+    			streamFile(read, filename, charset, offset, length, size);
+    		}
+    	}, "FileUtils.read").start();
+    	return read.id;
+    }
+    
+    /**
+     * Called by the page once it has dealt with a chunk, so the reader can send another
+     */
+    public void ackChunk(int id)
+    {
+    	ChunkedRead read = getRead(id);
+    	if (read == null)
+    		return;
+    	synchronized (read)
+    	{
+    		read.inFlight--;
+    		read.notifyAll();
+    	}
+    }
+    
+    public void abortRead(int id)
+    {
+    	ChunkedRead read = getRead(id);
+    	if (read == null)
+    		return;
+    	synchronized (read)
+    	{
+    		read.cancelled = true;
+    		read.notifyAll();
+    	}
+    }
+    
+    private ChunkedRead getRead(int id)
+    {
+    	synchronized (reads)
+    	{
+    		return reads.get(id);
+    	}
+    }
+    
+    private void streamFile(ChunkedRead read, String filename, String charset, long offset, long length, int size)
+    {
+    	RangeInputStream range = null;
+    	try {
+    		FileInputStream file = new FileInputStream(filename);
+    		range = new RangeInputStream(new BufferedInputStream(file, BUFFER_SIZE), length);
+    		long skipped = 0;
+    		while (skipped < offset)
+    		{
+    			long n = file.skip(offset - skipped);
+    			if (n <= 0)
+    				break;
+    			skipped += n;
+    		}
+    		Reader in = new InputStreamReader(range, charset);
+    		
+    		char[] buffer = new char[size + 1];
+    		int held = 0;
+    		boolean done = false;
+    		while (!done)
+    		{
+    			int filled = held;
+    			int n = 0;
+    			while (filled < size && (n = in.read(buffer, filled, size - filled)) != -1)
+    				filled += n;
+    			done = n == -1;
+    			
+    			// Don't split a surrogate pair across two chunks
+    			held = 0;
+    			if (!done && filled > 0 && Character.isHighSurrogate(buffer[filled - 1]))
+    			{
+    				held = 1;
+    				filled--;
+    			}
+    			
+    			if (!waitForWindow(read))
+    				return;
+    			StringBuilder call = new StringBuilder(filled + 64);
+    			call.append("navigator.file.gotChunk(").append(read.id).append(',');
+    			BridgeQueue.quote(new String(buffer, 0, filled), call);
+    			call.append(',').append(skipped + range.getCount()).append(',').append(done).append(')');
+    			mQueue.enqueue(call.toString());
+    			
+    			if (held > 0)
+    				buffer[0] = buffer[filled];
+    		}
+    	} catch (FileNotFoundException e) {
+    		mQueue.enqueue("navigator.file.chunkFailed(" + read.id + ",'File not found')");
+    	} catch (UnsupportedEncodingException e) {
+    		mQueue.enqueue("navigator.file.chunkFailed(" + read.id + ",'Unsupported encoding')");
+    	} catch (IOException e) {
+    		mQueue.enqueue("navigator.file.chunkFailed(" + read.id + ",'IO error')");
+    	} finally {
+    		closeQuietly(range);
+    		synchronized (reads)
+    		{
+    			reads.remove(read.id);
+    		}
+    	}
+    }
+    
+    /*
+     * Block until the page has room for another chunk.  Returns false if the read was aborted,
+     * or if the page stopped acknowledging chunks, say because it was navigated away from.
+     */
+    private boolean waitForWindow(ChunkedRead read)
+    {
+    	synchronized (read)
+    	{
+    		long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+    		while (read.inFlight >= WINDOW && !read.cancelled)
+    		{
+    			long left = deadline - System.currentTimeMillis();
+    			if (left <= 0)
+    			{
+    				mQueue.enqueue("navigator.file.chunkFailed(" + read.id + ",'Timed out')");
+    				return false;
+    			}
+    			try {
+    				read.wait(left);
+    			} catch (InterruptedException e) {
+    				return false;
+    			}
+    		}
+    		if (read.cancelled)
+    			return false;
+    		read.inFlight++;
+    		return true;
+    	}
+    }
+    
+    /**
+     * Open a file for ranged access.
+     *
+     * @param mode	"r" to read, "rw" to read and write, creating the file if needed
+     * @return a handle for readHandle, writeHandle, getSize and close, or -1 if it can't be opened
+     */
+    public int open(String filename, String mode)
+    {
+    	try {
+    		boolean writable = "rw".equals(mode);
+    		RandomAccessFile file = new RandomAccessFile(filename, writable ? "rw" : "r");
+    		synchronized (handles)
+    		{
+    			int handle = nextHandle++;
+    			handles.put(handle, new OpenFile(file, writable));
+    			return handle;
+    		}
+    	} catch (IOException e) {
+    		return -1;
+    	}
+    }
+    
+    public void close(int handle)
+    {
+    	OpenFile open;
+    	synchronized (handles)
+    	{
+    		open = handles.remove(handle);
+    	}
+    	if (open != null)
+    		closeQuietly(open.file);
+    }
+    
+    /**
+     * Close every handle the page left open, and finish any queued writes
+     */
+    public void closeAll()
+    {
+    	mWriter.closeAll();
+    	synchronized (handles)
+    	{
+    		for (OpenFile open : handles.values())
+    			closeQuietly(open.file);
+    		handles.clear();
+    	}
+    }
+    
+    /**
+     * @return the size of an open file in bytes, or -1 if the handle isn't open
+     */
+    public long getSize(int handle)
+    {
+    	OpenFile open = getHandle(handle);
+    	if (open == null)
+    		return -1;
+    	try {
+    		return open.file.getChannel().size();
+    	} catch (IOException e) {
+    		return -1;
+    	}
+    }
+    
+    /**
+     * Read up to length bytes at offset from an open file.
+     *
+     * @return the bytes as base64, an empty string at the end of the file, or null on error
+     */
+    public String readHandle(int handle, long offset, int length)
+    {
+    	OpenFile open = getHandle(handle);
+    	if (open == null)
+    		return null;
+    	try {
+    		return readRange(open.file.getChannel(), offset, length);
+    	} catch (IOException e) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Write base64 encoded bytes at offset in a file opened with "rw".  The file grows if the
+     * write goes past the end of it.
+     *
+     * @return the number of bytes written, or -1 on error or if the file was opened with "r"
+     */
+    public int writeHandle(int handle, long offset, String data)
+    {
+    	OpenFile open = getHandle(handle);
+    	if (open == null || !open.writable)
+    		return -1;
+    	try {
+    		return writeAt(open.file.getChannel(), offset, data);
+    	} catch (IOException e) {
+    		return -1;
+    	}
+    }
+    
+    /**
+     * One-off version of readHandle, for when only one range of a file is needed
+     */
+    public String readRange(String filename, long offset, int length)
+    {
+    	RandomAccessFile file = null;
+    	try {
+    		file = new RandomAccessFile(filename, "r");
+    		return readRange(file.getChannel(), offset, length);
+    	} catch (IOException e) {
+    		return null;
+    	} finally {
+    		closeQuietly(file);
+    	}
+    }
+    
+    /**
+     * One-off version of writeHandle
+     */
+    public int writeAt(String filename, long offset, String data)
+    {
+    	RandomAccessFile file = null;
+    	try {
+    		file = new RandomAccessFile(filename, "rw");
+    		return writeAt(file.getChannel(), offset, data);
+    	} catch (IOException e) {
+    		return -1;
+    	} finally {
+    		closeQuietly(file);
+    	}
+    }
+    
+    private OpenFile getHandle(int handle)
+    {
+    	synchronized (handles)
+    	{
+    		return handles.get(handle);
+    	}
+    }
+    
+    /*
+     * Positional reads and writes don't move the channel's position, so several calls on one
+     * handle don't get in each other's way.
+     */
+    private static String readRange(FileChannel channel, long offset, int length) throws IOException
+    {
+    	if (offset < 0 || length < 0)
+    		return null;
+    	long size = channel.size();
+    	if (offset >= size)
+    		return "";
+    	int n = (int) Math.min(Math.min(length, MAX_RANGE), size - offset);
+    	ByteBuffer buffer = ByteBuffer.allocate(n);
+    	while (buffer.hasRemaining())
+    	{
+    		if (channel.read(buffer, offset + buffer.position()) == -1)
+    			break;
+    	}
+    	byte[] bytes = buffer.array();
+    	if (buffer.position() < n)
+    	{
+    		bytes = new byte[buffer.position()];
+    		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+    	}
+    	return new String(Base64.encodeBase64(bytes), "US-ASCII");
+    }
+    
+    private static int writeAt(FileChannel channel, long offset, String data) throws IOException
     {
-    		String FilePath= filename;
-    		try {
-				byte [] rawData = data.getBytes();
-    			ByteArrayInputStream in = new ByteArrayInputStream(rawData);    			    			
-    			FileOutputStream out= new FileOutputStream(FilePath, false);
-    			byte buff[] = new byte[rawData.length];
-    			in.read(buff, 0, buff.length);
-    			out.write(buff, 0, rawData.length);
-    			out.flush();
-    			out.close();    			
-    			mView.loadUrl("javascript:navigator.file.winCallback('File written')");
-    		} catch (Exception e) { 
-    			mView.loadUrl("javascript:navigator.file.failCallback('Fail')"); 
+    	if (offset < 0 || data == null)
+    		return -1;
+    	ByteBuffer buffer = ByteBuffer.wrap(Base64.decodeBase64(data.getBytes("US-ASCII")));
+    	int written = 0;
+    	while (buffer.hasRemaining())
+    		written += channel.write(buffer, offset + written);
+    	return written;
+    }
+    
+    private static void closeQuietly(Closeable c)
+    {
+    	if (c == null)
+    		return;
+    	try {
+    		c.close();
+    	} catch (IOException e) {
+    		// Nothing useful to do about it
+    	}
+    }
+    
+    /*
+     * Stops after a number of bytes, and counts what has been read so far
+     */
+    private static class RangeInputStream extends FilterInputStream
+    {
+    	private long remaining;
+    	private long count = 0;
+    	
+    	RangeInputStream(InputStream in, long length)
+    	{
+    		super(in);
+    		remaining = length < 0 ? Long.MAX_VALUE : length;
+    	}
+    	
+    	long getCount()
+    	{
+    		return count;
+    	}
+    	
+    	@Override
+    	public int read() throws IOException
+    	{
+    		if (remaining <= 0)
+    			return -1;
+    		int b = in.read();
+    		if (b != -1)
+    		{
+    			remaining--;
+    			count++;
+    		}
+    		return b;
+    	}
+    	
+    	@Override
+    	public int read(byte[] b, int off, int len) throws IOException
+    	{
+    		if (remaining <= 0)
+    			return -1;
+    		int n = in.read(b, off, (int) Math.min(len, remaining));
+    		if (n > 0)
+    		{
+    			remaining -= n;
+    			count += n;
     		}
-		return 0;
+    		return n;
+    	}
+    	
+    	@Override
+    	public long skip(long n) throws IOException
+    	{
+    		long skipped = in.skip(Math.min(n, remaining));
+    		remaining -= skipped;
+    		count += skipped;
+    		return skipped;
+    	}
+    	
+    	@Override
+    	public int available() throws IOException
+    	{
+    		return (int) Math.min(in.available(), remaining);
+    	}
+    	
+    	@Override
+    	public boolean markSupported()
+    	{
+    		return false;
+    	}
+    }
+    
+    /**
+     * Queue a write on the background writer.  The result comes back through
+     * navigator.file.writesDone(done, failed), batched with any other writes that finished
+     * at the same time.
+     *
+     * @return the id of the write
+     */
+    public int write(String filename, String data, boolean append)
+    {
+    	return mWriter.write(filename, data, append);
+    }
+    
+    /**
+     * Close a file the writer is holding open, once its queued writes are done
+     */
+    public void closeWriter(String filename)
+    {
+    	mWriter.close(filename);
+    }
+    
+    /**
+     * @param policy	0 never fsync, 1 fsync when the file is closed, 2 fsync every interval ms
+     */
+    public void setSyncPolicy(int policy, int interval)
+    {
+    	mWriter.setSyncPolicy(policy, interval);
+    }
+    
+    public String getWriterStats()
+    {
+    	return mWriter.getStats();
     }
     
 
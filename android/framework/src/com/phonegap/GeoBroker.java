@@ -3,39 +3,365 @@ package com.phonegap;
 import java.util.HashMap;
 
 import android.content.Context;
-import android.webkit.WebView;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
 
 /*
  * This class is the interface to the Geolocation.  It's bound to the geo object.
  * 
- * This class only starts and stops various GeoListeners, which consist of a GPS and a Network Listener
+ * This class keeps track of the GeoListeners, one per watch, and owns the only GPS and Network
+ * listeners.  Each provider is registered once, at the shortest interval any watch asked for,
+ * and every fix is fanned out to all of the watches.  When the last watch stops, the providers
+ * are released.
+ *
+ * Every fix that comes in, and whatever the providers remember from before, also goes into a
+ * position cache, so getCurrentLocation can answer straight away when a recent enough fix
+ * already exists instead of starting the radios.
+ *
+ * Fixes from the two providers are fused rather than just forwarded.  Each watch only hears
+ * about a fix that is better than the last one it got, judged on age, accuracy and provider,
+ * so a coarse network fix can't clobber a good GPS fix that came in moments before.  Watches
+ * can also say how accurate is accurate enough; once a GPS fix meets that, the GPS is switched
+ * off until the watch's next interval comes around.
  */
 
 public class GeoBroker {
-    private WebView mAppView;
+    private BridgeQueue mQueue;
 	private Context mCtx;
-	private HashMap<String, GeoListener> geoListeners;
+	private HashMap<String, GeoListener> geoListeners = new HashMap<String, GeoListener>();
 	
-	public GeoBroker(WebView view, Context ctx)
+	private GpsListener mGps;
+	private NetworkListener mNetwork;
+	private Handler mHandler;
+	
+	// The intervals the providers are currently registered at, 0 when they're off
+	private int gpsInterval = 0;
+	private int networkInterval = 0;
+	
+	// The best fix we know about, from any provider
+	private Location cached;
+	
+	// A fix this much newer than the last one always wins
+	private static final long SIGNIFICANTLY_NEWER = 2 * 60 * 1000;
+	// A fix from the same provider may be this much less accurate and still replace an older one
+	private static final float ACCEPTABLE_ACCURACY_LOSS = 200;
+	
+	private long fixes = 0;
+	private long dropped = 0;
+	
+	private Runnable mUpdater = new Runnable() {
+		public void run()
+		{
+			updateProviders();
+		}
+	};
+	
+	// Fails a getCurrentLocation that took too long
+	private Runnable mTimeout = new Runnable() {
+		public void run()
+		{
+			GeoListener global;
+			synchronized (geoListeners)
+			{
+				global = geoListeners.get(GeoListener.GLOBAL);
+			}
+			if (global != null)
+			{
+				global.fail();
+				stop(GeoListener.GLOBAL);
+			}
+		}
+	};
+	
+	public GeoBroker(BridgeQueue queue, Context ctx)
 	{
 		mCtx = ctx;
-		mAppView = view;
+		mQueue = queue;
+		mHandler = new Handler();
+		mGps = new GpsListener(mCtx, this);
+		mNetwork = new NetworkListener(mCtx, this);
 	}
 	
 	public void getCurrentLocation()
 	{
-		GeoListener listener = new GeoListener("global", mCtx, 10000, mAppView);
+		getCurrentLocation(0, -1, true);
+	}
+	
+	/**
+	 * Get one position, following the W3C PositionOptions.
+	 *
+	 * @param maximumAge			a cached fix up to this many milliseconds old will do
+	 * @param timeout				give up after this many milliseconds, negative waits forever
+	 * @param enableHighAccuracy	only GPS fixes will do, otherwise the network is enough
+	 */
+	public void getCurrentLocation(int maximumAge, int timeout, boolean enableHighAccuracy)
+	{
+		Location loc = getCachedLocation(enableHighAccuracy);
+		if (loc != null && maximumAge > 0 && System.currentTimeMillis() - loc.getTime() <= maximumAge)
+		{
+			// Fast path, the radios don't need to come on at all.  This goes straight to the
+			// page, a listener would stop GLOBAL and with it any request that is still waiting.
+			mQueue.enqueue("navigator.geolocation.gotCurrentPosition(" + GeoListener.toParams(loc) + ")");
+			return;
+		}
+		
+		GeoListener listener = new GeoListener(GeoListener.GLOBAL, 10000, enableHighAccuracy, mQueue, this);
+		if (timeout == 0)
+		{
+			listener.fail();
+			return;
+		}
+		
+		mHandler.removeCallbacks(mTimeout);
+		add(listener);
+		if (timeout > 0)
+			mHandler.postDelayed(mTimeout, timeout);
 	}
 	
 	public String start(int freq, String key)
 	{
-		GeoListener listener = new GeoListener(key, mCtx, freq, mAppView);
-		geoListeners.put(key, listener);
+		return watch(freq, key, true, 0);
+	}
+	
+	/**
+	 * Start a watch.
+	 *
+	 * @param highAccuracy	whether the GPS should be used for this watch
+	 * @param accuracy		once a GPS fix is this accurate, in meters, the GPS can rest until
+	 * 						the next interval.  Zero keeps it on.
+	 */
+	public String watch(int freq, String key, boolean highAccuracy, float accuracy)
+	{
+		GeoListener listener = new GeoListener(key, freq, highAccuracy, mQueue, this);
+		listener.accuracy = accuracy;
+		add(listener);
 		return key;
 	}
 	
 	public void stop(String key)
 	{
-		GeoListener geo = geoListeners.get(key);
+		GeoListener geo;
+		synchronized (geoListeners)
+		{
+			geo = geoListeners.remove(key);
+		}
+		if (GeoListener.GLOBAL.equals(key))
+			mHandler.removeCallbacks(mTimeout);
+		if (geo != null)
+			updateProviders();
+	}
+	
+	/**
+	 * Drop every watch and request, and let go of both providers.  Called on the UI thread
+	 * when the activity goes away.
+	 */
+	public void destroy()
+	{
+		synchronized (geoListeners)
+		{
+			geoListeners.clear();
+		}
+		mHandler.removeCallbacks(mTimeout);
+		mHandler.removeCallbacks(mUpdater);
+		mGps.stop();
+		mNetwork.stop();
+		gpsInterval = 0;
+		networkInterval = 0;
+	}
+	
+	private void add(GeoListener listener)
+	{
+		synchronized (geoListeners)
+		{
+			geoListeners.put(listener.id, listener);
+		}
+		updateProviders();
+	}
+	
+	public int getWatchCount()
+	{
+		synchronized (geoListeners)
+		{
+			return geoListeners.size();
+		}
+	}
+	
+	/*
+	 * Called by both providers.  Each watch only gets the fix if it beats what it already has.
+	 */
+	void onLocation(Location loc)
+	{
+		remember(loc);
+		fixes++;
+		boolean rest = false;
+		long now = System.currentTimeMillis();
+		GeoListener[] listeners = getListeners();
+		for (int i = 0; i < listeners.length; i++)
+		{
+			GeoListener listener = listeners[i];
+			// A one-shot that asked for high accuracy waits for the GPS, or its timeout, the
+			// same as the cached fast path does
+			boolean coarse = !LocationManager.GPS_PROVIDER.equals(loc.getProvider());
+			if ((coarse && listener.highAccuracy && GeoListener.GLOBAL.equals(listener.id))
+					|| !isBetterLocation(loc, listener.last))
+			{
+				dropped++;
+				continue;
+			}
+			listener.last = loc;
+			if (listener.accuracy > 0 && loc.hasAccuracy() && loc.getAccuracy() <= listener.accuracy
+					&& LocationManager.GPS_PROVIDER.equals(loc.getProvider()))
+			{
+				listener.restUntil = now + listener.interval;
+				rest = true;
+			}
+			listener.success(loc);
+		}
+		if (rest)
+			updateProviders();
+	}
+	
+	/**
+	 * Decide whether a new fix should replace the current one.
+	 */
+	static boolean isBetterLocation(Location loc, Location current)
+	{
+		if (current == null)
+			return true;
+		
+		long age = loc.getTime() - current.getTime();
+		if (age > SIGNIFICANTLY_NEWER)
+			return true;
+		if (age < -SIGNIFICANTLY_NEWER)
+			return false;
+		
+		// Without an accuracy, assume the worst
+		float accuracy = loc.hasAccuracy() ? loc.getAccuracy() : Float.MAX_VALUE;
+		float currentAccuracy = current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE;
+		float loss = accuracy - currentAccuracy;
+		boolean sameProvider = loc.getProvider() == null ? current.getProvider() == null
+				: loc.getProvider().equals(current.getProvider());
+		
+		if (loss < 0)
+			return true;
+		if (age > 0 && loss == 0)
+			return true;
+		if (age > 0 && sameProvider && loss <= ACCEPTABLE_ACCURACY_LOSS)
+			return true;
+		return false;
+	}
+	
+	public synchronized String getStats()
+	{
+		return "{\"watches\":" + getWatchCount() +
+			",\"fixes\":" + fixes +
+			",\"dropped\":" + dropped +
+			",\"gpsInterval\":" + gpsInterval +
+			",\"networkInterval\":" + networkInterval + "}";
+	}
+	
+	void onFail()
+	{
+		GeoListener[] listeners = getListeners();
+		for (int i = 0; i < listeners.length; i++)
+			listeners[i].fail();
+	}
+	
+	public Location getLocation()
+	{
+		Location loc = mGps.getLocation();
+		if (loc == null)
+			loc = mNetwork.getLocation();
+		return loc;
+	}
+	
+	private synchronized void remember(Location loc)
+	{
+		if (loc != null && isBetterLocation(loc, cached))
+			cached = loc;
+	}
+	
+	/*
+	 * The newest fix we have, including whatever the providers kept from before we started.
+	 * With high accuracy asked for, only GPS fixes count.
+	 */
+	private synchronized Location getCachedLocation(boolean highAccuracy)
+	{
+		remember(mGps.getLocation());
+		remember(mNetwork.getLocation());
+		if (cached == null)
+			return null;
+		if (highAccuracy && !LocationManager.GPS_PROVIDER.equals(cached.getProvider()))
+			return mGps.getLocation();
+		return cached;
+	}
+	
+	private GeoListener[] getListeners()
+	{
+		synchronized (geoListeners)
+		{
+			return geoListeners.values().toArray(new GeoListener[geoListeners.size()]);
+		}
+	}
+	
+	/*
+	 * Make the provider registrations match the watches.  LocationManager delivers updates on
+	 * the looper of the thread that registered, so this is always done on the UI thread and not
+	 * on the thread Javascript called us on.
+	 */
+	private void updateProviders()
+	{
+		mHandler.post(new Runnable() {
+			public void run()
+			{
+				// The GPS is only worth powering up for watches that want high accuracy and
+				// haven't just had it
+				int gps = 0;
+				int network = 0;
+				long wake = 0;
+				long now = System.currentTimeMillis();
+				synchronized (geoListeners)
+				{
+					for (GeoListener listener : geoListeners.values())
+					{
+						if (network == 0 || listener.interval < network)
+							network = listener.interval;
+						if (!listener.highAccuracy)
+							continue;
+						if (listener.restUntil > now)
+						{
+							if (wake == 0 || listener.restUntil < wake)
+								wake = listener.restUntil;
+							continue;
+						}
+						if (gps == 0 || listener.interval < gps)
+							gps = listener.interval;
+					}
+				}
+				
+				// Come back when the first resting watch needs the GPS again
+				mHandler.removeCallbacks(mUpdater);
+				if (wake > 0)
+					mHandler.postDelayed(mUpdater, wake - now);
+				
+				if (gps != gpsInterval)
+				{
+					gpsInterval = gps;
+					if (gps == 0)
+						mGps.stop();
+					else
+						mGps.start(gps);
+				}
+				if (network != networkInterval)
+				{
+					networkInterval = network;
+					if (network == 0)
+						mNetwork.stop();
+					else
+						mNetwork.start(network);
+				}
+			}
+		});
 	}
 }
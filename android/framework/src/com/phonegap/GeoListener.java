@@ -1,28 +1,38 @@
 package com.phonegap;
 
-import android.content.Context;
 import android.location.Location;
-import android.webkit.WebView;
+
+/*
+ * One of these for every watch.  The GeoBroker hands it fixes from the shared providers, and it
+ * passes them on to Javascript.
+ */
 
 public class GeoListener {
+	static final String GLOBAL = "global";
+	
 	String id;
 	String successCallback;
 	String failCallback;
-    GpsListener mGps; 
-    NetworkListener mNetwork;
-    Context mCtx;
-    private WebView mAppView;
+    private BridgeQueue mQueue;
+    private GeoBroker mBroker;
 	
 	int interval;
+	boolean highAccuracy;
+	
+	// Meters.  A GPS fix this good lets the GPS rest until restUntil
+	float accuracy = 0;
+	long restUntil = 0;
 	
-	GeoListener(String i, Context ctx, int time, WebView appView)
+	// The last fix this watch was given
+	Location last;
+	
+	GeoListener(String i, int time, boolean accurate, BridgeQueue queue, GeoBroker broker)
 	{
 		id = i;
 		interval = time;
-		mCtx = ctx;
-        mGps = new GpsListener(mCtx, interval, this);
-        mNetwork = new NetworkListener(mCtx, interval, this);
-        mAppView = appView;
+		highAccuracy = accurate;
+        mQueue = queue;
+        mBroker = broker;
 	}
 	
 	void success(Location loc)
@@ -31,46 +41,47 @@ public class GeoListener {
 		 * We only need to figure out what we do when we succeed!
 		 */
 		
-		String params; 
-		/*
-		 * Build the giant string to send back to Javascript!
-		 */
-		params = loc.getLatitude() + "," + loc.getLongitude() + ", " + loc.getAltitude() + "," + loc.getAccuracy() + "," + loc.getBearing();
-		params += "," + loc.getSpeed() + "," + loc.getTime();
-		if(id != "global")
+		String params = toParams(loc);
+		if(!id.equals(GLOBAL))
 		{
-			mAppView.loadUrl("javascript:navigator.geolocation.success(" + id + "," +  params + ")");
+			mQueue.enqueue("navigator.geolocation.success(" + id + "," +  params + ")");
 		}
 		else
 		{
-			mAppView.loadUrl("javascript:navigator.geolocation.gotCurrentPosition(" + params + ")");
+			mQueue.enqueue("navigator.geolocation.gotCurrentPosition(" + params + ")");
 			this.stop();
 		}
 	}
 	
+	/*
+	 * Build the giant string to send back to Javascript!
+	 */
+	static String toParams(Location loc)
+	{
+		String params = loc.getLatitude() + "," + loc.getLongitude() + ", " + loc.getAltitude() + "," + loc.getAccuracy() + "," + loc.getBearing();
+		params += "," + loc.getSpeed() + "," + loc.getTime();
+		return params;
+	}
+	
 	void fail()
 	{
 		// Do we need to know why?  How would we handle this?
-		if (id != "global") {
-			mAppView.loadUrl("javascript:navigator.geolocation.fail(" + id + ")");
+		if (!id.equals(GLOBAL)) {
+			mQueue.enqueue("navigator.geolocation.fail(" + id + ")");
 		}
 		else
 		{
-			mAppView.loadUrl("javascript:navigator.geolocation.fail()");
+			mQueue.enqueue("navigator.geolocation.fail()");
 		}
 	}
 	
-	// This stops the listener
+	// This stops the listener, and the providers too if nobody else is using them
 	void stop()
 	{
-		mGps.stop();
-		mNetwork.stop();
+		mBroker.stop(id);
 	}
 
 	public Location getCurrentLocation() {
-		Location loc = mGps.getLocation();
-		if (loc == null)
-			loc = mNetwork.getLocation();
-		return loc;
+		return mBroker.getLocation();
 	}
 }
@@ -34,15 +34,24 @@ public class GpsListener implements LocationListener {
 	private Location cLoc;
 	private LocationManager mLocMan;
 	private static final String LOG_TAG = "PhoneGap";
-	private GeoListener owner;
+	private GeoBroker owner;
+	private boolean running = false;
 	
-	public GpsListener(Context ctx, int interval, GeoListener m)
+	public GpsListener(Context ctx, GeoBroker m)
 	{
 		owner = m;
 		mCtx = ctx;
 		mLocMan = (LocationManager) mCtx.getSystemService(Context.LOCATION_SERVICE);
+	}
+	
+	/*
+	 * Registering again with the same listener just replaces the old interval
+	 */
+	public void start(int interval)
+	{
 		mLocMan.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, 0, this);
 		cLoc = mLocMan.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+		running = true;
 	}
 	
 	public Location getLocation()
@@ -54,7 +63,7 @@ public class GpsListener implements LocationListener {
 	public void onProviderDisabled(String provider) {
 		// TODO Auto-generated method stub
 		Log.d(LOG_TAG, "The provider " + provider + " is disabled");
-		owner.fail();
+		owner.onFail();
 	}
 
 	public void onProviderEnabled(String provider) {
@@ -69,7 +78,7 @@ public class GpsListener implements LocationListener {
 		if(status == 0)
 		{
 			Log.d(LOG_TAG, provider + " is OUT OF SERVICE");
-			owner.fail();
+			owner.onFail();
 		}
 		else if(status == 1)
 		{
@@ -84,7 +93,8 @@ public class GpsListener implements LocationListener {
 
 	public void onLocationChanged(Location location) {
 		Log.d(LOG_TAG, "The location has been updated!");
-		owner.success(location);
+		cLoc = location;
+		owner.onLocation(location);
 	}
 
 	public boolean hasLocation() {
@@ -93,7 +103,10 @@ public class GpsListener implements LocationListener {
 
 	public void stop()
 	{
-		mLocMan.removeUpdates(this);
+		if (running)
+			mLocMan.removeUpdates(this);
+		running = false;
+		cLoc = null;
 	}
 	
 }
@@ -1,65 +1,637 @@
 package com.phonegap;
 
-import java.io.EOFException;
-import java.io.FileOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.methods.HttpHead;
+
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Downloads files to the SD card.
+ *
+ * Data goes into <file>.part, and the progress of every segment is saved next to it in
+ * <file>.part.state, so a download that dies with the network, or with the app, carries on from
+ * where it got to with Range requests.  The saved state remembers the server's ETag (or
+ * Last-Modified), and is thrown away if the file has changed since.
+ *
+ * Every request asks for the identity encoding, so the sizes and Range offsets are in the
+ * file's own bytes and not in gzip's.
+ *
+ * Big files on servers that take ranges are split into a few segments that download in
+ * parallel into the same file.  If a server answers a segment with the whole file after all,
+ * the download starts again as one stream.  Downloads wait their turn in a queue, a few at a time, and
+ * progress goes to the page at most every PROGRESS_INTERVAL ms.
+ */
 
 public class HttpHandler {
 
-	protected Boolean get(String url, String file)
+	private static final String LOG_TAG = "HttpHandler";
+	private static final int BUFFER_SIZE = 32 * 1024;
+	private static final int MAX_ACTIVE = 3;
+	private static final int MAX_SEGMENTS = 4;
+	private static final long MIN_SEGMENT = 512 * 1024;
+	private static final int MAX_RETRIES = 5;
+	private static final int RETRY_DELAY = 1000;
+	private static final int PROGRESS_INTERVAL = 250;
+	private static final int SAVE_INTERVAL = 1000;
+	private static final String PART = ".part";
+	private static final String STATE = ".part.state";
+
+	/*
+	 * One download, split into one or more byte ranges.  ends are inclusive, -1 meaning
+	 * "to the end of whatever the server sends".
+	 */
+	private class Download implements Runnable
+	{
+		int id;
+		String url;
+		File file;
+		int wantSegments;
+		volatile boolean cancelled = false;
+		// Set when one segment has given up, so the others stop too
+		volatile boolean failed = false;
+
+		long total = -1;
+		boolean ranges = false;
+		String validator = "";
+		long[] starts;
+		long[] positions;
+		long[] ends;
+
+		long lastProgress = 0;
+		long lastSave = 0;
+		// Held while the state file is written, so two segments don't write it at once
+		final Object stateLock = new Object();
+		ArrayList<HttpGet> requests = new ArrayList<HttpGet>();
+
+		public void run()
+		{
+			try {
+				download(this);
+				finish(this, true, null);
+			} catch (IOException e) {
+				finish(this, false, cancelled ? "Cancelled" : e.getMessage());
+			} catch (RuntimeException e) {
+				// A url HttpClient won't take, say.  The page still has to hear about it.
+				Log.d(LOG_TAG, url + ": " + e);
+				finish(this, false, "Could not download " + url);
+			}
+		}
+
+		synchronized long getLoaded()
+		{
+			long loaded = 0;
+			for (int i = 0; i < starts.length; i++)
+				loaded += positions[i] - starts[i];
+			return loaded;
+		}
+	}
+
+	/*
+	 * The server sent the whole file to a segment that asked for a range of it, which happens
+	 * when it can't honour If-Range, say because the ETag is weak
+	 */
+	private static class RangeIgnoredException extends IOException
+	{
+		RangeIgnoredException()
+		{
+			super("Server ignored the Range request");
+		}
+	}
+
+	private BridgeQueue mQueue;
+	private ExecutorService mDownloads;
+	private ExecutorService mSegments;
+	private HashMap<Integer, Download> active = new HashMap<Integer, Download>();
+	private int nextId = 1;
+	private boolean destroyed = false;
+
+	HttpHandler(BridgeQueue queue)
+	{
+		mQueue = queue;
+	}
+
+	/**
+	 * Queue a download.  Progress goes to navigator.network.downloadProgress(id, loaded,
+	 * total), and the result to navigator.network.downloadDone(id, ok, message).
+	 *
+	 * @param file		where to put it, relative to the SD card unless it starts with /
+	 * @param segments	how many parallel ranges a big file can be split into
+	 * @return the download id
+	 */
+	public int download(String url, String file, int segments)
+	{
+		Download d = create(url, file, segments);
+		synchronized (this)
+		{
+			if (destroyed)
+				return -1;
+			d.id = nextId++;
+			active.put(d.id, d);
+			if (mDownloads == null)
+			{
+				mDownloads = Executors.newFixedThreadPool(MAX_ACTIVE);
+				mSegments = Executors.newCachedThreadPool();
+			}
+			mDownloads.execute(d);
+		}
+		return d.id;
+	}
+
+	/**
+	 * Cancel every download and stop the threads.  What was downloaded so far is kept for
+	 * next time, as with cancel().
+	 */
+	public void destroy()
+	{
+		Download[] all;
+		synchronized (this)
+		{
+			destroyed = true;
+			all = active.values().toArray(new Download[active.size()]);
+			if (mDownloads != null)
+			{
+				mDownloads.shutdownNow();
+				mSegments.shutdownNow();
+			}
+		}
+		for (int i = 0; i < all.length; i++)
+			cancel(all[i].id);
+	}
+
+	/**
+	 * Stop a download.  What has been downloaded so far is kept, so downloading the same url
+	 * to the same file again picks up where this one stopped.
+	 */
+	public void cancel(int id)
+	{
+		Download d;
+		synchronized (this)
+		{
+			d = active.get(id);
+		}
+		if (d == null)
+			return;
+		d.cancelled = true;
+		synchronized (d)
+		{
+			for (int i = 0; i < d.requests.size(); i++)
+				d.requests.get(i).abort();
+		}
+	}
+
+	public synchronized int getActiveCount()
+	{
+		return active.size();
+	}
+
+	private Download create(String url, String file, int segments)
+	{
+		Download d = new Download();
+		d.url = url;
+		d.file = file.startsWith("/") ? new File(file) : new File(Environment.getExternalStorageDirectory(), file);
+		d.wantSegments = Math.max(1, Math.min(segments, MAX_SEGMENTS));
+		return d;
+	}
+
+	private void stopSegments(Download d)
 	{
-		HttpEntity entity = getHttpEntity(url);
+		d.failed = true;
+		synchronized (d)
+		{
+			for (int i = 0; i < d.requests.size(); i++)
+				d.requests.get(i).abort();
+		}
+	}
+	
+	private void download(final Download d) throws IOException
+	{
+		probe(d);
+		if (!loadState(d))
+			plan(d);
+
+		File part = new File(d.file.getPath() + PART);
+		IOException error = fetchAll(d, part);
+		if (error instanceof RangeIgnoredException && !d.cancelled)
+		{
+			// No use splitting it up, so get it all in one go
+			Log.d(LOG_TAG, d.url + ": ranges ignored, downloading as one stream");
+			d.failed = false;
+			d.ranges = false;
+			plan(d);
+			error = fetchAll(d, part);
+		}
+		if (d.cancelled)
+			error = new IOException("Cancelled");
+		if (error != null)
+		{
+			saveState(d);
+			throw error;
+		}
+
+		// All there, move it into place
+		if (d.file.exists() && !d.file.delete())
+			throw new IOException("Could not replace " + d.file.getName());
+		if (!part.renameTo(d.file))
+			throw new IOException("Could not rename " + part.getName());
+		new File(d.file.getPath() + STATE).delete();
+		progress(d, true);
+	}
+
+	/*
+	 * Fetch every segment as planned.  Returns why it failed, or null if it all arrived.
+	 */
+	private IOException fetchAll(final Download d, final File part) throws IOException
+	{
+		int n = d.starts.length;
+		if (n > 1)
+		{
+			RandomAccessFile out = new RandomAccessFile(part, "rw");
+			try {
+				out.setLength(d.total);
+			} finally {
+				out.close();
+			}
+		}
+		saveState(d);
+
+		/*
+		 * This thread does the first segment, helpers do the rest
+		 */
+		ArrayList<Future<?>> helpers = new ArrayList<Future<?>>();
+		final IOException[] failure = new IOException[1];
+		for (int i = 1; i < n && !d.cancelled; i++)
+		{
+			final int segment = i;
+			Runnable helper = new Runnable() {
+				public void run()
+				{
+					try {
+						fetchSegment(d, segment, part);
+					} catch (IOException e) {
+						synchronized (failure)
+						{
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+						stopSegments(d);
+					}
+				}
+			};
+			try {
+				helpers.add(mSegments.submit(helper));
+			} catch (RejectedExecutionException e) {
+				// destroy() got there first
+				d.cancelled = true;
+				stopSegments(d);
+			}
+		}
 		try {
-			writeToDisk(entity, file);
-		} catch (Exception e) { e.printStackTrace(); return false; }
+			fetchSegment(d, 0, part);
+		} catch (IOException e) {
+			synchronized (failure)
+			{
+				if (failure[0] == null)
+					failure[0] = e;
+			}
+			stopSegments(d);
+		}
+		for (int i = 0; i < helpers.size(); i++)
+		{
+			try {
+				helpers.get(i).get();
+			} catch (InterruptedException e) {
+				d.cancelled = true;
+			} catch (ExecutionException e) {
+				Log.d(LOG_TAG, "Segment failed: " + e.getMessage());
+			}
+		}
+		// The first segment to fail says why, the rest were only stopped because of it
+		synchronized (failure)
+		{
+			return failure[0];
+		}
+	}
+
+	/*
+	 * Find out how big the file is, whether the server takes ranges, and what version of the
+	 * file it has.  Servers that don't answer HEAD just get one plain segment.
+	 */
+	private void probe(Download d)
+	{
+		HttpHead head = new HttpHead(d.url);
+		head.addHeader("Accept-Encoding", HttpPool.IDENTITY);
 		try {
-			entity.consumeContent();
-		} catch (Exception e) { e.printStackTrace(); return false; }
-		return true;
+			HttpResponse response = HttpPool.getInstance().execute(head);
+			HttpEntity entity = response.getEntity();
+			if (entity != null)
+				entity.consumeContent();
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+				return;
+			Header length = response.getFirstHeader("Content-Length");
+			Header ranges = response.getFirstHeader("Accept-Ranges");
+			Header etag = response.getFirstHeader("ETag");
+			Header modified = response.getFirstHeader("Last-Modified");
+			if (length != null)
+				d.total = Long.parseLong(length.getValue().trim());
+			d.ranges = ranges != null && ranges.getValue().indexOf("bytes") != -1;
+			// A weak ETag can't be used with If-Range, the server would always send the
+			// whole file.  Without a validator that works there's no telling whether the
+			// segments all came from the same version, so it's one stream.
+			boolean weak = etag != null && etag.getValue().startsWith("W/");
+			if (etag != null && !weak)
+				d.validator = etag.getValue();
+			else if (modified != null)
+				d.validator = modified.getValue();
+			else
+				d.ranges = false;
+		} catch (IOException e) {
+			Log.d(LOG_TAG, "HEAD failed for " + d.url + ": " + e.getMessage());
+		} catch (NumberFormatException e) {
+			d.total = -1;
+		}
 	}
-	
-	private HttpEntity getHttpEntity(String url)
-	/**
-	 * get the http entity at a given url
+
+	private void plan(Download d)
+	{
+		int n = 1;
+		if (d.ranges && d.total > 0)
+			n = (int) Math.max(1, Math.min(d.wantSegments, d.total / MIN_SEGMENT));
+		d.starts = new long[n];
+		d.positions = new long[n];
+		d.ends = new long[n];
+		long size = n == 1 ? 0 : d.total / n;
+		for (int i = 0; i < n; i++)
+		{
+			d.starts[i] = i * size;
+			d.positions[i] = d.starts[i];
+			d.ends[i] = i == n - 1 ? (d.total > 0 && n > 1 ? d.total - 1 : -1) : (i + 1) * size - 1;
+		}
+		new File(d.file.getPath() + PART).delete();
+	}
+
+	/*
+	 * Fetch one segment, retrying from where it got to if the connection drops
 	 */
+	private void fetchSegment(Download d, int segment, File part) throws IOException
 	{
-		HttpEntity entity=null;
+		int retries = 0;
+		while (true)
+		{
+			try {
+				fetchRange(d, segment, part);
+				return;
+			} catch (IOException e) {
+				if (e instanceof RangeIgnoredException || d.cancelled || d.failed || ++retries > MAX_RETRIES)
+					throw e;
+				Log.d(LOG_TAG, d.url + " segment " + segment + " retry " + retries + ": " + e.getMessage());
+				saveState(d);
+				try {
+					Thread.sleep(RETRY_DELAY << (retries - 1));
+				} catch (InterruptedException ie) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void fetchRange(Download d, int segment, File part) throws IOException
+	{
+		long pos;
+		long end;
+		synchronized (d)
+		{
+			// Without ranges, or a validator to guard them, there's no carrying on part way
+			// through, a retry starts again from the top
+			if (!d.ranges)
+				d.positions[segment] = d.starts[segment];
+			pos = d.positions[segment];
+			end = d.ends[segment];
+		}
+		if (end != -1 && pos > end)
+			return;
+
+		HttpGet get = new HttpGet(d.url);
+		get.addHeader("Accept-Encoding", HttpPool.IDENTITY);
+		boolean ranged = pos > 0 || end != -1;
+		if (ranged)
+			get.addHeader("Range", "bytes=" + pos + "-" + (end == -1 ? "" : String.valueOf(end)));
+		if (ranged && d.validator.length() > 0)
+			get.addHeader("If-Range", d.validator);
+		synchronized (d)
+		{
+			d.requests.add(get);
+		}
+		if (d.cancelled || d.failed)
+			get.abort();
+
+		RandomAccessFile out = null;
+		InputStream in = null;
 		try {
-			DefaultHttpClient httpclient = new DefaultHttpClient();
-			HttpGet httpget = new HttpGet(url);
-			HttpResponse response = httpclient.execute(httpget);
-			entity = response.getEntity();
-		} catch (Exception e) { e.printStackTrace(); return null; }
-		return entity;
+			HttpResponse response = HttpPool.getInstance().execute(get);
+			int status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (status == HttpStatus.SC_OK && ranged)
+			{
+				// The server sent the whole file.  That's only any use to a single segment.
+				if (d.starts.length > 1)
+				{
+					if (entity != null)
+						entity.consumeContent();
+					throw new RangeIgnoredException();
+				}
+				synchronized (d)
+				{
+					d.positions[0] = 0;
+				}
+				pos = 0;
+				new File(part.getPath()).delete();
+			}
+			else if (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT)
+			{
+				if (entity != null)
+					entity.consumeContent();
+				throw new IOException("HTTP " + status);
+			}
+			if (entity == null)
+				return;
+
+			out = new RandomAccessFile(part, "rw");
+			out.seek(pos);
+			in = entity.getContent();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+			{
+				if (d.cancelled || d.failed)
+					throw new IOException("Stopped");
+				// Don't run into the next segment if the server sends too much
+				if (end != -1 && pos + n > end + 1)
+					n = (int) (end + 1 - pos);
+				out.write(buffer, 0, n);
+				pos += n;
+				synchronized (d)
+				{
+					d.positions[segment] = pos;
+				}
+				progress(d, false);
+				if (end != -1 && pos > end)
+				{
+					get.abort();
+					break;
+				}
+			}
+			// A dropped connection looks just like the end of the body, so check it's all
+			// there.  Throwing hands it to the retry, which carries on from pos.
+			if (end != -1 ? pos <= end : d.total > 0 && pos < d.total)
+				throw new IOException("Connection closed at " + pos + " bytes");
+		} finally {
+			synchronized (d)
+			{
+				d.requests.remove(get);
+			}
+			if (in != null)
+			{
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Aborted on purpose
+				}
+			}
+			if (out != null)
+				out.close();
+		}
 	}
-	
-	private void writeToDisk(HttpEntity entity, String file) throws EOFException
-	/**
-	 * writes a HTTP entity to the specified filename and location on disk
+
+	private void progress(Download d, boolean force)
+	{
+		long now = SystemClock.uptimeMillis();
+		boolean send;
+		boolean save;
+		synchronized (d)
+		{
+			send = force || now - d.lastProgress >= PROGRESS_INTERVAL;
+			if (send)
+				d.lastProgress = now;
+			save = !force && now - d.lastSave >= SAVE_INTERVAL;
+			// Claimed here, so only one segment saves each interval
+			if (save)
+				d.lastSave = now;
+		}
+		if (save)
+			saveState(d);
+		if (send)
+			mQueue.enqueue("navigator.network.downloadProgress(" + d.id + "," + d.getLoaded() + "," + d.total + ")");
+	}
+
+	private void finish(Download d, boolean ok, String message)
+	{
+		synchronized (this)
+		{
+			active.remove(d.id);
+		}
+		mQueue.enqueue("navigator.network.downloadDone(" + d.id + "," + ok + "," + BridgeQueue.quote(message) + ")");
+	}
+
+	/*
+	 * The state file is the url, the validator, the total size, then one "start position end"
+	 * line per segment
 	 */
-	{  
-		int i=0;
-		String FilePath="/sdcard/" + file;
+	private void saveState(Download d)
+	{
+		File state = new File(d.file.getPath() + STATE);
+		StringBuilder out = new StringBuilder();
+		// The snapshot is taken under the same lock as the write, so an older one can't
+		// land on top of a newer one
+		synchronized (d.stateLock)
+		{
+			synchronized (d)
+			{
+				if (d.starts == null)
+					return;
+				d.lastSave = SystemClock.uptimeMillis();
+				out.append(d.url).append('\n').append(d.validator).append('\n').append(d.total).append('\n');
+				for (int i = 0; i < d.starts.length; i++)
+					out.append(d.starts[i]).append(' ').append(d.positions[i]).append(' ').append(d.ends[i]).append('\n');
+			}
+			try {
+				FileWriter writer = new FileWriter(state);
+				try {
+					writer.write(out.toString());
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				Log.d(LOG_TAG, "Could not save state: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Pick up an earlier attempt, if it was for the same version of the same file
+	 */
+	private boolean loadState(Download d)
+	{
+		File state = new File(d.file.getPath() + STATE);
+		File part = new File(d.file.getPath() + PART);
+		if (!state.exists() || !part.exists() || !d.ranges)
+			return false;
 		try {
-			InputStream in = entity.getContent();
-			byte buff[] = new byte[1024];    
-			FileOutputStream out=
-				new FileOutputStream(FilePath);
-			do {
-				int numread = in.read(buff);
-				if (numread <= 0)
-                   	break;
-				out.write(buff, 0, numread);
-				System.out.println("numread" + numread);
-				i++;
-			} while (true);
-			out.flush();
-			out.close();	
-		} catch (Exception e) { e.printStackTrace(); }
+			BufferedReader in = new BufferedReader(new FileReader(state));
+			try {
+				if (!d.url.equals(in.readLine()) || !d.validator.equals(in.readLine()))
+					return false;
+				if (Long.parseLong(in.readLine()) != d.total)
+					return false;
+				ArrayList<long[]> segments = new ArrayList<long[]>();
+				String line;
+				while ((line = in.readLine()) != null && line.length() > 0)
+				{
+					String[] f = line.split(" ");
+					segments.add(new long[] { Long.parseLong(f[0]), Long.parseLong(f[1]), Long.parseLong(f[2]) });
+				}
+				int n = segments.size();
+				if (n == 0)
+					return false;
+				d.starts = new long[n];
+				d.positions = new long[n];
+				d.ends = new long[n];
+				for (int i = 0; i < n; i++)
+				{
+					d.starts[i] = segments.get(i)[0];
+					d.positions[i] = segments.get(i)[1];
+					d.ends[i] = segments.get(i)[2];
+				}
+				Log.d(LOG_TAG, "Resuming " + d.url + " at " + d.getLoaded() + " bytes");
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			// A state file we can't make sense of
+			return false;
+		}
 	}
 }
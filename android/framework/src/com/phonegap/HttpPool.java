@@ -0,0 +1,332 @@
+package com.phonegap;
+/* License (MIT)
+ * Copyright (c) 2008 Nitobi
+ * website: http://phonegap.com
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * Software), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+
+/*
+ * The one HTTP client everything in PhoneGap shares.
+ *
+ * Creating a DefaultHttpClient per request meant a new TCP connection, and a new TLS handshake
+ * for https, every time.  This client keeps a thread safe pool of kept-alive connections, a
+ * few per host, and asks servers for gzip.
+ *
+ * Every request goes through execute(), which keeps count of how many requests got a pooled
+ * connection, how long new connections took to set up, and how many bytes came off the wire.
+ */
+
+public class HttpPool {
+
+	private static final int MAX_TOTAL = 10;
+	private static final int MAX_PER_HOST = 4;
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+	private static final int POOL_TIMEOUT = 10000;
+	private static final int IDLE_TIMEOUT = 30000;
+	private static final int SOCKET_BUFFER = 8 * 1024;
+
+	private static final String ATTR_START = "phonegap.start";
+
+	/**
+	 * Accept-Encoding for requests that must not be zipped
+	 */
+	static final String IDENTITY = "identity";
+
+	private static HttpPool sInstance;
+
+	private DefaultHttpClient mClient;
+	private long lastCleanup;
+
+	/*
+	 * Counters
+	 */
+	private long requests = 0;
+	private long poolHits = 0;
+	private long connects = 0;
+	private long connectTime = 0;
+	private long bytes = 0;
+	private long gzipped = 0;
+	private long failures = 0;
+
+	/**
+	 * The shared client, created on first use
+	 */
+	public static synchronized HttpPool getInstance()
+	{
+		if (sInstance == null)
+			sInstance = new HttpPool();
+		return sInstance;
+	}
+
+	/**
+	 * Close every pooled connection.  The next getInstance() starts a fresh pool.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (sInstance != null)
+		{
+			sInstance.mClient.getConnectionManager().shutdown();
+			sInstance = null;
+		}
+	}
+
+	private HttpPool()
+	{
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUserAgent(params, "PhoneGap/" + PhoneGap.version + " (Android)");
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_PER_HOST));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemes);
+		mClient = new DefaultHttpClient(manager, params);
+
+		/*
+		 * Request interceptors run once the connection is up, so this is where we find out
+		 * whether it came from the pool and how long it took to get
+		 */
+		mClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException
+			{
+				if (!request.containsHeader("Accept-Encoding"))
+					request.addHeader("Accept-Encoding", "gzip");
+
+				HttpConnection conn = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+				Long start = (Long) context.getAttribute(ATTR_START);
+				boolean reused = conn != null && conn.getMetrics().getRequestCount() > 0;
+				synchronized (HttpPool.this)
+				{
+					if (reused)
+						poolHits++;
+					else if (start != null)
+					{
+						connects++;
+						connectTime += SystemClock.uptimeMillis() - start.longValue();
+					}
+				}
+			}
+		});
+
+		/*
+		 * Count what comes off the wire, then unzip it if the server zipped it.  A request that
+		 * asked for identity wants the bytes exactly as they are on the server, say because it
+		 * counts Range offsets in them, so that's left alone.
+		 */
+		mClient.addResponseInterceptor(new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) throws HttpException, IOException
+			{
+				HttpEntity entity = response.getEntity();
+				if (entity == null)
+					return;
+				entity = new CountingEntity(entity);
+				HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+				Header accept = request == null ? null : request.getFirstHeader("Accept-Encoding");
+				boolean identity = accept != null && accept.getValue().trim().equalsIgnoreCase(IDENTITY);
+				if (!identity && isGzip(entity.getContentEncoding()))
+				{
+					entity = new GzipEntity(entity);
+					synchronized (HttpPool.this)
+					{
+						gzipped++;
+					}
+				}
+				response.setEntity(entity);
+			}
+		});
+	}
+
+	/**
+	 * Run a request on a pooled connection.  The caller has to consume or abort the entity so
+	 * the connection goes back to the pool.
+	 */
+	public HttpResponse execute(HttpUriRequest request) throws IOException
+	{
+		long now = SystemClock.uptimeMillis();
+		boolean cleanup = false;
+		synchronized (this)
+		{
+			requests++;
+			if (now - lastCleanup > IDLE_TIMEOUT)
+			{
+				lastCleanup = now;
+				cleanup = true;
+			}
+		}
+		if (cleanup)
+		{
+			ClientConnectionManager manager = mClient.getConnectionManager();
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ATTR_START, Long.valueOf(now));
+		try {
+			return mClient.execute(request, context);
+		} catch (IOException e) {
+			synchronized (this)
+			{
+				failures++;
+			}
+			throw e;
+		}
+	}
+
+	public synchronized String getStats()
+	{
+		return "{\"requests\":" + requests +
+			",\"poolHits\":" + poolHits +
+			",\"connects\":" + connects +
+			",\"connectTime\":" + connectTime +
+			",\"bytes\":" + bytes +
+			",\"gzipped\":" + gzipped +
+			",\"failures\":" + failures + "}";
+	}
+
+	private static boolean isGzip(Header encoding)
+	{
+		if (encoding == null)
+			return false;
+		HeaderElement[] codecs = encoding.getElements();
+		for (int i = 0; i < codecs.length; i++)
+		{
+			if (codecs[i].getName().equalsIgnoreCase("gzip"))
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized void addBytes(long n)
+	{
+		bytes += n;
+	}
+
+	/*
+	 * Counts the bytes read out of the wrapped entity
+	 */
+	private class CountingEntity extends HttpEntityWrapper
+	{
+		CountingEntity(HttpEntity wrapped)
+		{
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException
+		{
+			return new FilterInputStream(wrappedEntity.getContent()) {
+				@Override
+				public int read() throws IOException
+				{
+					int b = super.read();
+					if (b != -1)
+						addBytes(1);
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException
+				{
+					int n = super.read(buffer, offset, count);
+					if (n > 0)
+						addBytes(n);
+					return n;
+				}
+			};
+		}
+	}
+
+	/*
+	 * Unzips the wrapped entity.  The unzipped length isn't known up front.
+	 */
+	private static class GzipEntity extends HttpEntityWrapper
+	{
+		GzipEntity(HttpEntity wrapped)
+		{
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException
+		{
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength()
+		{
+			return -1;
+		}
+
+		@Override
+		public Header getContentEncoding()
+		{
+			return null;
+		}
+	}
+}
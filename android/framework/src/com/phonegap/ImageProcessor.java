@@ -0,0 +1,421 @@
+package com.phonegap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Bitmap.CompressFormat;
+import android.util.Log;
+
+/*
+ * All the work on a picture happens here, off the UI thread: turning it upright, scaling it
+ * down, compressing it and base64 encoding it.  There's one thread, since a decoded picture
+ * can take a big share of the heap and two at once is asking for OutOfMemoryError.  Pictures
+ * wait behind it up to MAX_QUEUED_BYTES of JPEG data.  Past that the picture fails straight
+ * away rather than piling up in memory.
+ *
+ * Every picture is a job with an id.  Progress goes to navigator.camera.progress(id, fraction)
+ * and the result to navigator.camera.pictureDone(id, ok, result), where result is a file://
+ * URI, a base64 string or why it failed.  A job can be cancelled at any point, even part way
+ * through decoding.
+ */
+
+public class ImageProcessor {
+
+	private static final String LOG_TAG = "ImageProcessor";
+
+	// Camera data held by pictures that aren't finished, the one being worked on included
+	private static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+
+	private static ImageProcessor sInstance;
+
+	/*
+	 * What was asked for one picture
+	 */
+	static class Settings
+	{
+		int quality = 100;
+		int destinationType = CameraLauncher.DATA_URL;
+		String output;
+		int targetWidth;
+		int targetHeight;
+		boolean correctOrientation;
+	}
+
+	private static class CancelledException extends Exception
+	{
+	}
+
+	private class Job implements Runnable
+	{
+		int id;
+		byte[] data;
+		Settings settings;
+		volatile boolean cancelled;
+		BitmapFactory.Options decoding;
+
+		public void run()
+		{
+			boolean ok = false;
+			String result;
+			try {
+				result = process(this);
+				ok = result != null;
+				if (!ok)
+					result = "Could not process the picture";
+			} catch (CancelledException e) {
+				result = "Cancelled";
+			} catch (IOException e) {
+				Log.d(LOG_TAG, "Job " + id + ": " + e.getMessage());
+				result = "Could not write the picture";
+			} catch (OutOfMemoryError e) {
+				result = "Not enough memory for the picture";
+			} catch (RuntimeException e) {
+				// Anything else still has to finish the job, or the page waits forever
+				Log.d(LOG_TAG, "Job " + id + ": " + e);
+				result = "Could not process the picture";
+			}
+			int size = data.length;
+			data = null;
+			if (!ok && settings.output != null)
+				new File(settings.output).delete();
+			synchronized (ImageProcessor.this)
+			{
+				jobs.remove(id);
+				queuedBytes -= size;
+				if (ok)
+					done++;
+				else if (cancelled)
+					cancels++;
+				else
+					failures++;
+			}
+			mQueue.enqueue("navigator.camera.pictureDone(" + id + "," + ok + "," + BridgeQueue.quote(result) + ")");
+		}
+	}
+
+	private BridgeQueue mQueue;
+	private File mTempDir;
+	private ThreadPoolExecutor mExecutor;
+	private HashMap<Integer, Job> jobs = new HashMap<Integer, Job>();
+	private int nextId = 1;
+	private long queuedBytes = 0;
+
+	private long submitted = 0;
+	private long done = 0;
+	private long passThrough = 0;
+	private long rotated = 0;
+	private long cancels = 0;
+	private long failures = 0;
+	private long rejected = 0;
+
+	/**
+	 * The processor CameraPreview hands its pictures to, or null if there isn't one
+	 */
+	static synchronized ImageProcessor getInstance()
+	{
+		return sInstance;
+	}
+
+	ImageProcessor(BridgeQueue queue, File tempDir)
+	{
+		mQueue = queue;
+		mTempDir = tempDir;
+		mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>());
+		synchronized (ImageProcessor.class)
+		{
+			sInstance = this;
+		}
+	}
+
+	/**
+	 * Cancel everything and stop the threads
+	 */
+	public void shutdown()
+	{
+		cancelAll();
+		mExecutor.shutdown();
+		synchronized (ImageProcessor.class)
+		{
+			if (sInstance == this)
+				sInstance = null;
+		}
+	}
+
+	/**
+	 * Queue a picture from the camera
+	 *
+	 * @return the job id, or -1 if there were too many pictures waiting already
+	 */
+	public int submit(byte[] data, Settings settings)
+	{
+		Job job = new Job();
+		job.data = data;
+		job.settings = settings;
+		boolean full;
+		synchronized (this)
+		{
+			job.id = nextId++;
+			submitted++;
+			// One picture always fits, however big
+			full = !jobs.isEmpty() && queuedBytes + data.length > MAX_QUEUED_BYTES;
+			if (full)
+				rejected++;
+			else
+			{
+				jobs.put(job.id, job);
+				queuedBytes += data.length;
+			}
+		}
+		if (full)
+		{
+			mQueue.enqueue("navigator.camera.pictureDone(" + job.id + ",false,\"Too many pictures in progress\")");
+			return -1;
+		}
+		// Before it's queued, so the page hears about the job before anything else about it
+		progress(job, 0);
+		try {
+			mExecutor.execute(job);
+		} catch (RejectedExecutionException e) {
+			// Shut down
+			synchronized (this)
+			{
+				jobs.remove(job.id);
+				queuedBytes -= data.length;
+				rejected++;
+			}
+			mQueue.enqueue("navigator.camera.pictureDone(" + job.id + ",false,\"Too many pictures in progress\")");
+			return -1;
+		}
+		return job.id;
+	}
+
+	public void cancel(int id)
+	{
+		Job job;
+		synchronized (this)
+		{
+			job = jobs.get(id);
+		}
+		if (job != null)
+			cancel(job);
+	}
+
+	public void cancelAll()
+	{
+		Job[] all;
+		synchronized (this)
+		{
+			all = jobs.values().toArray(new Job[jobs.size()]);
+		}
+		for (int i = 0; i < all.length; i++)
+			cancel(all[i]);
+	}
+
+	private void cancel(Job job)
+	{
+		job.cancelled = true;
+		synchronized (job)
+		{
+			if (job.decoding != null)
+				job.decoding.requestCancelDecode();
+		}
+	}
+
+	public synchronized String getStats()
+	{
+		return "{\"submitted\":" + submitted +
+			",\"done\":" + done +
+			",\"passThrough\":" + passThrough +
+			",\"rotated\":" + rotated +
+			",\"cancelled\":" + cancels +
+			",\"failed\":" + failures +
+			",\"rejected\":" + rejected +
+			",\"active\":" + mExecutor.getActiveCount() +
+			",\"queued\":" + mExecutor.getQueue().size() +
+			",\"queuedBytes\":" + queuedBytes + "}";
+	}
+
+	private void progress(Job job, float fraction)
+	{
+		mQueue.enqueue("navigator.camera.progress(" + job.id + "," + fraction + ")");
+	}
+
+	private static void check(Job job) throws CancelledException
+	{
+		if (job.cancelled)
+			throw new CancelledException();
+	}
+
+	/*
+	 * Returns the result for the page, or null if the picture couldn't be decoded or compressed
+	 */
+	private String process(Job job) throws IOException, CancelledException
+	{
+		check(job);
+		Settings s = job.settings;
+		byte[] data = job.data;
+		boolean toFile = s.destinationType == CameraLauncher.FILE_URI && s.output != null;
+		boolean jpeg = isJpeg(data);
+		// The camera already hands us a JPEG at full quality.  If that's what was asked for,
+		// decoding and compressing it again would only cost time and lose detail.
+		boolean asIs = jpeg && s.quality >= 100 && s.targetWidth <= 0 && s.targetHeight <= 0;
+
+		// EXIF can only be read from a file, and if the picture can go as it is that's all
+		// there is to do
+		int rotation = 0;
+		if (toFile && (asIs || (jpeg && s.correctOrientation)))
+		{
+			writeFile(s.output, data);
+			progress(job, 0.2f);
+			if (s.correctOrientation)
+				rotation = ExifReflect.getRotation(s.output);
+		}
+		else if (jpeg && s.correctOrientation)
+		{
+			File exif = File.createTempFile("exif", ".jpg", mTempDir);
+			try {
+				writeFile(exif.getPath(), data);
+				rotation = ExifReflect.getRotation(exif.getPath());
+			} finally {
+				exif.delete();
+			}
+		}
+		check(job);
+
+		if (asIs && rotation == 0)
+		{
+			synchronized (this)
+			{
+				passThrough++;
+			}
+			return toFile ? "file://" + s.output : new String(Base64.encodeBase64(data));
+		}
+
+		// Turned a quarter, the target box is the other way round
+		boolean sideways = rotation == 90 || rotation == 270;
+		Bitmap picture = decode(job, sideways ? s.targetHeight : s.targetWidth,
+			sideways ? s.targetWidth : s.targetHeight);
+		check(job);
+		if (picture == null)
+			return null;
+		try {
+			progress(job, 0.5f);
+			if (rotation != 0)
+			{
+				Matrix m = new Matrix();
+				m.postRotate(rotation);
+				Bitmap turned = Bitmap.createBitmap(picture, 0, 0, picture.getWidth(), picture.getHeight(), m, true);
+				if (turned != picture)
+				{
+					picture.recycle();
+					picture = turned;
+				}
+				synchronized (this)
+				{
+					rotated++;
+				}
+				progress(job, 0.7f);
+				check(job);
+			}
+
+			if (toFile)
+			{
+				FileOutputStream out = new FileOutputStream(s.output);
+				try {
+					if (!picture.compress(CompressFormat.JPEG, s.quality, out))
+						return null;
+				} finally {
+					out.close();
+				}
+				return "file://" + s.output;
+			}
+			ByteArrayOutputStream jpeg_data = new ByteArrayOutputStream();
+			if (!picture.compress(CompressFormat.JPEG, s.quality, jpeg_data))
+				return null;
+			progress(job, 0.9f);
+			check(job);
+			return new String(Base64.encodeBase64(jpeg_data.toByteArray()));
+		} finally {
+			picture.recycle();
+		}
+	}
+
+	private static boolean isJpeg(byte[] data)
+	{
+		return data.length > 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8;
+	}
+
+	private static void writeFile(String path, byte[] data) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Only as much of the picture as the page asked for gets decoded.  The bounds come first, and
+	 * inSampleSize skips every other row and column as many times as it can without going under
+	 * the target, which is far cheaper than decoding it all and scaling down.  Whatever is left
+	 * over is scaled to fit.
+	 */
+	private Bitmap decode(Job job, int targetWidth, int targetHeight)
+	{
+		byte[] data = job.data;
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		synchronized (job)
+		{
+			// cancel() stops the decode through these
+			job.decoding = options;
+		}
+		if (job.cancelled)
+			return null;
+		if (targetWidth <= 0 && targetHeight <= 0)
+			return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		int width = options.outWidth;
+		int height = options.outHeight;
+		if (width <= 0 || height <= 0)
+			return null;
+
+		// The biggest size that fits in the target, keeping the picture's shape
+		float scale = 1;
+		if (targetWidth > 0)
+			scale = Math.min(scale, (float) targetWidth / width);
+		if (targetHeight > 0)
+			scale = Math.min(scale, (float) targetHeight / height);
+		int outWidth = Math.max(1, Math.round(width * scale));
+		int outHeight = Math.max(1, Math.round(height * scale));
+
+		int sample = 1;
+		while (width / (sample * 2) >= outWidth && height / (sample * 2) >= outHeight)
+			sample *= 2;
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sample;
+		Bitmap picture = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (picture == null || (picture.getWidth() <= outWidth && picture.getHeight() <= outHeight))
+			return picture;
+
+		Bitmap scaled = Bitmap.createScaledBitmap(picture, outWidth, outHeight, true);
+		if (scaled != picture)
+			picture.recycle();
+		return scaled;
+	}
+}
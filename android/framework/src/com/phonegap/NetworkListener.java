@@ -34,15 +34,24 @@ public class NetworkListener implements LocationListener {
 	private Location cLoc;
 	private LocationManager mLocMan;
 	private static final String LOG_TAG = "PhoneGap";
-	GeoListener owner;
+	GeoBroker owner;
+	private boolean running = false;
 	
-	public NetworkListener(Context ctx, int interval, GeoListener m)
+	public NetworkListener(Context ctx, GeoBroker m)
 	{
 		owner = m;
 		mCtx = ctx;
 		mLocMan = (LocationManager) mCtx.getSystemService(Context.LOCATION_SERVICE);
+	}
+	
+	/*
+	 * Registering again with the same listener just replaces the old interval
+	 */
+	public void start(int interval)
+	{
 		mLocMan.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, interval, 0, this);
 		cLoc = mLocMan.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+		running = true;
 	}
 	
 	public Location getLocation()
@@ -82,21 +91,21 @@ public class NetworkListener implements LocationListener {
 
 
 	/*
-	 * The GPS is the primary form of Geolocation in PhoneGap.  Only fire the success variables if the GPS is down
-	 * for some reason
+	 * The GPS is the primary form of Geolocation in PhoneGap.  The broker decides whether this fix
+	 * is any better than what the GPS already gave us
 	 */
 	public void onLocationChanged(Location location) {
 		Log.d(LOG_TAG, "The location has been updated!");
-		if (!owner.mGps.hasLocation())
-		{
-			owner.success(location);
-		}
 		cLoc = location;
+		owner.onLocation(location);
 	}
 	
 	public void stop()
 	{
-		mLocMan.removeUpdates(this);
+		if (running)
+			mLocMan.removeUpdates(this);
+		running = false;
+		cLoc = null;
 	}
 	
 }
@@ -1,53 +1,426 @@
 package com.phonegap;
 
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.params.HttpConnectionParams;
+
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.*;
-import android.webkit.WebView;
+import android.os.SystemClock;
+
+/*
+ * Reachability is answered from a per-host cache wherever possible.  A probe is a TCP connect
+ * to the host's port with a short timeout, or a HEAD request when the page asks for one, never
+ * a full GET.  Good answers are kept for REACHABLE_TTL and bad ones for UNREACHABLE_TTL, so a
+ * page can ask as often as it likes without the server noticing.  Probes, DNS lookup included,
+ * only ever run in the background: when the cache has nothing fresh, isReachable answers with
+ * what it knew last and the probe pushes the real answer.
+ *
+ * When connectivity changes every answer goes stale, any hosts the page is watching are
+ * probed again in the background, and the ones whose answer changed are pushed to
+ * navigator.network.updateReachability.
+ *
+ * The same receiver keeps a snapshot of the active network, so isAvailable and isWifiActive
+ * never have to ask ConnectivityManager, and every real change to it is pushed to
+ * navigator.network.connectionChanged.  The page doesn't need to poll.
+ */
 
 public class NetworkManager {
 
+	private static final int PROBE_TIMEOUT = 2500;
+	private static final int REACHABLE_TTL = 30000;
+	private static final int UNREACHABLE_TTL = 5000;
+
+	/*
+	 * The last probe of one host
+	 */
+	private static class Probe
+	{
+		boolean reachable;
+		long checkedAt;
+		long time;
+		// Known, but from before the last connectivity change
+		boolean stale;
+
+		boolean isFresh(long now)
+		{
+			return !stale && now - checkedAt < (reachable ? REACHABLE_TTL : UNREACHABLE_TTL);
+		}
+	}
+
 	Context mCtx;
-	WebView mView;
+	BridgeQueue mQueue;
 	ConnectivityManager sockMan;
-	
-	NetworkManager(Context ctx, WebView view)
+
+	private HashMap<String, Probe> cache = new HashMap<String, Probe>();
+	private HashMap<String, Boolean> watched = new HashMap<String, Boolean>();
+	// Hosts isReachable has already asked the probe thread about
+	private HashSet<String> refreshing = new HashSet<String>();
+	private ExecutorService mProbes;
+
+	private long probes = 0;
+	private long cacheHits = 0;
+
+	/*
+	 * The active network as of the last broadcast
+	 */
+	private volatile boolean connected = false;
+	private volatile int type = -1;
+	private volatile String state = "";
+	private long changes = 0;
+
+	private BroadcastReceiver mReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context ctx, Intent intent)
+		{
+			// Moving between two wifi networks leaves the snapshot as it was, but not the routes
+			updateState();
+			onConnectivityChanged();
+		}
+	};
+
+	NetworkManager(Context ctx, BridgeQueue queue)
 	{
 		mCtx = ctx;
-		mView = view;
+		mQueue = queue;
 		sockMan = (ConnectivityManager) mCtx.getSystemService(Context.CONNECTIVITY_SERVICE);
+		updateState();
+		mCtx.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	public void destroy()
+	{
+		mCtx.unregisterReceiver(mReceiver);
+		synchronized (this)
+		{
+			if (mProbes != null)
+				mProbes.shutdownNow();
+		}
 	}
-	
+
 	public boolean isAvailable()
 	{
-		NetworkInfo info = sockMan.getActiveNetworkInfo();
-		boolean conn = info.isConnected();
-		return conn;
+		return connected;
 	}
-	
+
 	public boolean isWifiActive()
 	{
+		return connected && type == ConnectivityManager.TYPE_WIFI;
+	}
+
+	/**
+	 * The active network as JSON: connected, type ("none", "wifi", "mobile" or "other"),
+	 * subtype (e.g. "EDGE"), metered and roaming
+	 */
+	public String getNetworkState()
+	{
+		return state;
+	}
+
+	/*
+	 * Rebuild the snapshot.  Broadcasts are repeated for all sorts of reasons, so the new state
+	 * is only pushed if it's actually different.  Returns true if it was.
+	 *
+	 * There's no metered flag on these releases, so mobile data counts as metered and
+	 * everything else doesn't.
+	 */
+	private boolean updateState()
+	{
+		// There's no active network at all in airplane mode
 		NetworkInfo info = sockMan.getActiveNetworkInfo();
-		String type = info.getTypeName();
-		return type.equals("WIFI");
+		boolean isConnected = info != null && info.isConnected();
+		int t = isConnected ? info.getType() : -1;
+		String name;
+		if (!isConnected)
+			name = "none";
+		else if (t == ConnectivityManager.TYPE_WIFI)
+			name = "wifi";
+		else if (t == ConnectivityManager.TYPE_MOBILE)
+			name = "mobile";
+		else
+			name = "other";
+		String subtype = isConnected && info.getSubtypeName() != null ? info.getSubtypeName() : "";
+		String json = "{\"connected\":" + isConnected +
+			",\"type\":\"" + name + "\"" +
+			",\"subtype\":" + BridgeQueue.quote(subtype) +
+			",\"metered\":" + (t == ConnectivityManager.TYPE_MOBILE) +
+			",\"roaming\":" + (isConnected && info.isRoaming()) + "}";
+
+		synchronized (this)
+		{
+			if (json.equals(state))
+				return false;
+			connected = isConnected;
+			type = t;
+			state = json;
+			changes++;
+		}
+		mQueue.enqueue("navigator.network.connectionChanged(" + json + ")");
+		return true;
+	}
+
+	/**
+	 * Whether a TCP connection can be made to the host of a uri.  This never waits on the
+	 * network: if the host hasn't been checked recently it's probed in the background, the
+	 * answer is pushed to navigator.network.updateReachability, and this returns the last
+	 * answer there was.  A host never checked before counts as reachable while there's a
+	 * connection.
+	 */
+	public boolean isReachable(final String uri)
+	{
+		if (!isAvailable())
+			return false;
+		final String key = hostKey(toUrl(uri));
+		long now = SystemClock.uptimeMillis();
+		Boolean known;
+		synchronized (this)
+		{
+			Probe p = cache.get(key);
+			if (p != null && p.isFresh(now))
+			{
+				cacheHits++;
+				return p.reachable;
+			}
+			known = p == null ? null : Boolean.valueOf(p.reachable);
+			if (!refreshing.add(key))
+				return known == null || known.booleanValue();
+		}
+		getProbes().execute(new Runnable() {
+			public void run()
+			{
+				try {
+					push(uri, reachable(uri, false));
+				} finally {
+					synchronized (NetworkManager.this)
+					{
+						refreshing.remove(key);
+					}
+				}
+			}
+		});
+		return known == null || known.booleanValue();
+	}
+
+	/**
+	 * Probe a host off the bridge thread, with a HEAD request if head is set.  The answer goes
+	 * to navigator.network.updateReachability.
+	 */
+	public void checkReachability(final String uri, final boolean head)
+	{
+		getProbes().execute(new Runnable() {
+			public void run()
+			{
+				push(uri, reachable(uri, head));
+			}
+		});
 	}
-	
-	public boolean isReachable(String uri)
+
+	/**
+	 * Probe a host again every time connectivity changes, and push its new status if it's
+	 * different.  Watching the same host twice changes the probe type.
+	 */
+	public synchronized void watchReachability(String uri, boolean head)
+	{
+		watched.put(uri, head);
+	}
+
+	public synchronized void clearReachability(String uri)
+	{
+		watched.remove(uri);
+	}
+
+	/**
+	 * Returns the shared HTTP client's counters as JSON
+	 */
+	public String getHttpStats()
+	{
+		return HttpPool.getInstance().getStats();
+	}
+
+	public synchronized String getReachabilityStats()
+	{
+		return "{\"hosts\":" + cache.size() +
+			",\"watched\":" + watched.size() +
+			",\"probes\":" + probes +
+			",\"cacheHits\":" + cacheHits +
+			",\"connectionChanges\":" + changes + "}";
+	}
+
+	private synchronized ExecutorService getProbes()
+	{
+		if (mProbes == null)
+			mProbes = Executors.newSingleThreadExecutor();
+		return mProbes;
+	}
+
+	/*
+	 * The blocking probe, only ever called on the probe thread
+	 */
+	private boolean reachable(String uri, boolean head)
+	{
+		if (!isAvailable())
+			return false;
+		String url = toUrl(uri);
+		String key = (head ? "HEAD " : "") + hostKey(url);
+		long now = SystemClock.uptimeMillis();
+		synchronized (this)
+		{
+			Probe p = cache.get(key);
+			if (p != null && p.isFresh(now))
+			{
+				cacheHits++;
+				return p.reachable;
+			}
+			probes++;
+		}
+
+		Probe p = new Probe();
+		p.reachable = head ? probeHead(url) : probeTcp(url);
+		p.checkedAt = SystemClock.uptimeMillis();
+		p.time = p.checkedAt - now;
+		synchronized (this)
+		{
+			cache.put(key, p);
+		}
+		return p.reachable;
+	}
+
+	private static String toUrl(String uri)
+	{
+		return uri.indexOf("://") == -1 ? "http://" + uri : uri;
+	}
+
+	/*
+	 * Host and port, so every path on a server shares one cache entry
+	 */
+	private static String hostKey(String url)
 	{
-		if (uri.indexOf("http://") == -1)
-			uri = "http://" + uri;
-		boolean reached = isAvailable();
 		try {
-			DefaultHttpClient httpclient = new DefaultHttpClient();
-			HttpGet httpget = new HttpGet(uri);
-			httpclient.execute(httpget);			
-		} catch (Exception e) { 
-			reached = false;
+			URI u = new URI(url);
+			return u.getHost() + ":" + port(u);
+		} catch (URISyntaxException e) {
+			return url;
 		}
-		return reached;
 	}
-	
-	
+
+	private static int port(URI u)
+	{
+		if (u.getPort() != -1)
+			return u.getPort();
+		return "https".equalsIgnoreCase(u.getScheme()) ? 443 : 80;
+	}
+
+	private boolean probeTcp(String url)
+	{
+		Socket socket = new Socket();
+		try {
+			URI u = new URI(url);
+			if (u.getHost() == null)
+				return false;
+			// Looked up here, on the probe thread, since there's no timeout on DNS
+			InetAddress address = InetAddress.getByName(u.getHost());
+			socket.connect(new InetSocketAddress(address, port(u)), PROBE_TIMEOUT);
+			return true;
+		} catch (URISyntaxException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
+	/*
+	 * Any answer at all from the server counts, even an error status
+	 */
+	private boolean probeHead(String url)
+	{
+		try {
+			HttpHead head = new HttpHead(url);
+			HttpConnectionParams.setConnectionTimeout(head.getParams(), PROBE_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(head.getParams(), PROBE_TIMEOUT);
+			HttpResponse response = HttpPool.getInstance().execute(head);
+			// Hand the connection back to the pool
+			HttpEntity entity = response.getEntity();
+			if (entity != null)
+				entity.consumeContent();
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Whatever we knew is out of date now.  Probe the watched hosts again, and push the ones
+	 * whose answer changed.
+	 */
+	private void onConnectivityChanged()
+	{
+		final ArrayList<String> uris = new ArrayList<String>();
+		final ArrayList<Boolean> heads = new ArrayList<Boolean>();
+		final HashMap<String, Boolean> before = new HashMap<String, Boolean>();
+		synchronized (this)
+		{
+			for (String uri : watched.keySet())
+			{
+				boolean head = watched.get(uri);
+				Probe p = cache.get((head ? "HEAD " : "") + hostKey(toUrl(uri)));
+				uris.add(uri);
+				heads.add(head);
+				if (p != null)
+					before.put(uri, p.reachable);
+			}
+			// Kept as the last known answers until the probes come back
+			for (Probe p : cache.values())
+				p.stale = true;
+		}
+		if (uris.isEmpty())
+			return;
+		getProbes().execute(new Runnable() {
+			public void run()
+			{
+				for (int i = 0; i < uris.size(); i++)
+				{
+					String uri = uris.get(i);
+					boolean now = reachable(uri, heads.get(i));
+					Boolean was = before.get(uri);
+					if (was == null || was.booleanValue() != now)
+						push(uri, now);
+				}
+			}
+		});
+	}
+
+	/*
+	 * In the shape Network.updateReachability documents: 0 not reachable, 1 over the carrier's
+	 * network, 2 over wifi
+	 */
+	private void push(String uri, boolean reachable)
+	{
+		int via = !isAvailable() ? 0 : isWifiActive() ? 2 : 1;
+		mQueue.enqueue("navigator.network.updateReachability({\"hostName\":" + BridgeQueue.quote(uri) +
+			",\"remoteHostStatus\":" + (reachable ? via : 0) +
+			",\"internetConnectionStatus\":" + via +
+			",\"localWiFiConnectionStatus\":" + (via == 2 ? 2 : 0) + "})");
+	}
 }
@@ -22,48 +22,47 @@ package com.phonegap;
  * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
-import android.content.Context;
-import android.hardware.SensorManager;
-import android.hardware.SensorListener;
-import android.webkit.WebView;
+import android.hardware.Sensor;
 
-public class Orientation implements SensorListener{
+/*
+ * The old SensorListener based accelerometer hook.  It now sits on the SensorHub like
+ * everything else, so it shares the accelerometer registration with AccelListener.
+ */
+public class Orientation implements SensorHub.Subscriber{
 
-	private WebView mAppView;
-    private SensorManager sensorManager;
-	private Context mCtx;
+	private SensorHub mHub;
+	private float x, y, z;
+	private boolean fresh = false;
     
-	Orientation(WebView kit, Context ctx) {
-		mAppView = kit;
-		mCtx = ctx;
-        sensorManager = (SensorManager) mCtx.getSystemService(Context.SENSOR_SERVICE);
+	Orientation(SensorHub hub) {
+		mHub = hub;
         this.resumeAccel();
 	}
 	
-	public void onSensorChanged(int sensor, final float[] values) {
-		if (sensor != SensorManager.SENSOR_ACCELEROMETER || values.length < 3)
-			return;
-        float x = values[0];
-        float y = values[1];
-        float z = values[2];
-        mAppView.loadUrl("javascript:gotAcceleration(" + x + ", " + y + "," + z + ")");
+	public void onSample(int type, long time, float[] values) {
+        x = values[0];
+        y = values[1];
+        z = values[2];
+        fresh = true;
 	}
 
-	public void onAccuracyChanged(int arg0, int arg1) {
-		// This is a stub method.
-		
+	public boolean appendPacket(StringBuilder packet) {
+		if (!fresh)
+			return false;
+		fresh = false;
+		packet.append("gotAcceleration(").append(x).append(", ").append(y).append(',').append(z).append(')');
+		return true;
 	}
 
 	public void pauseAccel()
 	{
-        sensorManager.unregisterListener(this);	
+        mHub.stop(Sensor.TYPE_ACCELEROMETER, this);
 	}
 	
 	public void resumeAccel()
 	{
-		sensorManager.registerListener(this, 
-				   SensorManager.SENSOR_ACCELEROMETER,
-				   SensorManager.SENSOR_DELAY_GAME);
+		// This used to be SENSOR_DELAY_GAME
+		mHub.start(Sensor.TYPE_ACCELEROMETER, this, 20);
 	}
 	
 }
@@ -23,8 +23,12 @@ package com.phonegap;
  */
 
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.SensorManager;
 import android.net.Uri;
@@ -34,9 +38,23 @@ import android.webkit.WebView;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
 
+/*
+ * Everything the page can ask about the device is gathered into one snapshot, on a background
+ * thread at startup.  TelephonyManager calls go all the way to the radio, so after that the
+ * getters only read the snapshot, and it's rebuilt only when the SIM or the operator changes.
+ * getDeviceInfo hands the page all of it in one bridge call.
+ */
+
 public class PhoneGap{
 	
 	private static final String LOG_TAG = "PhoneGap";
+	
+	/*
+	 * Sent by the telephony service, but the constants aren't in the SDK
+	 */
+	private static final String ACTION_SIM_STATE_CHANGED = "android.intent.action.SIM_STATE_CHANGED";
+	private static final String ACTION_SERVICE_STATE = "android.intent.action.SERVICE_STATE";
+	
 	/*
 	 * UUID, version and availability	
 	 */
@@ -47,14 +65,126 @@ public class PhoneGap{
 	private Context mCtx;
     private WebView mAppView;
     AudioHandler audio; 
+    HttpHandler http;
+    
+	/*
+	 * The device info snapshot.  It's never changed once built, a rebuild replaces it whole,
+	 * so the getters can read it without a lock.
+	 */
+	private static class DeviceInfo
+	{
+		String uuid;
+		String line1Number;
+		String voiceMailNumber;
+		String operatorName;
+		String simCountryIso;
+		String json;
+	}
+	
+	private TelephonyManager mTelephony;
+	private ExecutorService mInfoThread;
+	private volatile DeviceInfo mInfo;
+	
+	private BroadcastReceiver mInfoReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context ctx, Intent intent)
+		{
+			refreshDeviceInfo();
+		}
+	};
     
-	public PhoneGap(Context ctx, WebView appView) {
+	public PhoneGap(Context ctx, WebView appView, BridgeQueue queue) {
         this.mCtx = ctx;
         this.mAppView = appView;
-        audio = new AudioHandler("/sdcard/tmprecording.mp3", ctx);
-        uuid = getUuid();
+        audio = new AudioHandler("/sdcard/tmprecording.mp3", ctx, queue);
+        mTelephony = (TelephonyManager) mCtx.getSystemService(Context.TELEPHONY_SERVICE);
+        mInfoThread = Executors.newSingleThreadExecutor();
+        refreshDeviceInfo();
+        IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+        filter.addAction(ACTION_SERVICE_STATE);
+        mCtx.registerReceiver(mInfoReceiver, filter);
     }
 	
+	public void destroy()
+	{
+		mCtx.unregisterReceiver(mInfoReceiver);
+		mInfoThread.shutdownNow();
+		audio.destroy();
+	}
+	
+	/**
+	 * uuid, platform, version (of the OS), sdkVersion, gapVersion, name, model, line1Number,
+	 * voiceMailNumber, networkOperatorName and simCountryIso as one JSON object
+	 */
+	public String getDeviceInfo()
+	{
+		return getInfo().json;
+	}
+	
+	/*
+	 * Only builds here if the page got in before the background build finished
+	 */
+	private DeviceInfo getInfo()
+	{
+		DeviceInfo info = mInfo;
+		if (info != null)
+			return info;
+		info = buildDeviceInfo();
+		synchronized (this)
+		{
+			// The background build may have finished meanwhile, and it's as new as this one
+			if (mInfo == null)
+				publish(info);
+			return mInfo;
+		}
+	}
+	
+	private void refreshDeviceInfo()
+	{
+		mInfoThread.execute(new Runnable() {
+			public void run()
+			{
+				DeviceInfo info = buildDeviceInfo();
+				synchronized (PhoneGap.this)
+				{
+					publish(info);
+				}
+			}
+		});
+	}
+	
+	private void publish(DeviceInfo info)
+	{
+		uuid = info.uuid;
+		mInfo = info;
+	}
+	
+	/*
+	 * The radio queries can take a while, and SERVICE_STATE comes round often, so nothing is
+	 * locked while they run
+	 */
+	private DeviceInfo buildDeviceInfo()
+	{
+		DeviceInfo info = new DeviceInfo();
+		info.uuid = mTelephony.getDeviceId();
+		info.line1Number = mTelephony.getLine1Number();
+		info.voiceMailNumber = mTelephony.getVoiceMailNumber();
+		info.operatorName = mTelephony.getNetworkOperatorName();
+		info.simCountryIso = mTelephony.getSimCountryIso();
+		info.json = "{\"uuid\":" + BridgeQueue.quote(info.uuid) +
+			",\"platform\":" + BridgeQueue.quote(platform) +
+			",\"version\":" + BridgeQueue.quote(getOSVersion()) +
+			",\"sdkVersion\":" + BridgeQueue.quote(getSDKVersion()) +
+			",\"gapVersion\":" + BridgeQueue.quote(version) +
+			",\"name\":" + BridgeQueue.quote(getProductName()) +
+			",\"model\":" + BridgeQueue.quote(getModel()) +
+			",\"line1Number\":" + BridgeQueue.quote(info.line1Number) +
+			",\"voiceMailNumber\":" + BridgeQueue.quote(info.voiceMailNumber) +
+			",\"networkOperatorName\":" + BridgeQueue.quote(info.operatorName) +
+			",\"simCountryIso\":" + BridgeQueue.quote(info.simCountryIso) + "}";
+		return info;
+	}
+	
 	public void beep(long pattern)
 	{
 		Uri ringtone = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
@@ -79,15 +209,13 @@ public class PhoneGap{
 	}
 	
 	public String getUuid()
-	{		
-		TelephonyManager operator = (TelephonyManager) mCtx.getSystemService(Context.TELEPHONY_SERVICE);
-		String uuid = operator.getDeviceId();
-		return uuid;
+	{
+		return getInfo().uuid;
 	}
 	
 	public void init()
 	{
-		mAppView.loadUrl("javascript:Device.setData('Android','" + version + "','" + this.getUuid() + "')");
+		mAppView.loadUrl("javascript:Device.setData('Android','" + version + "','" + getUuid() + "')");
 	}
 	
 	public String getModel()
@@ -121,11 +249,11 @@ public class PhoneGap{
     /**
      * grabs a file from specified url and saves it to a name and location
      * the base directory /sdcard is abstracted so that paths may be the same from one mobile OS to another
-     * TODO: JavaScript call backs and error handling
+     * The download is queued and runs in the background; navigator.network.download has callbacks
      */
     {
-    	HttpHandler http = new HttpHandler();
-    	http.get(url, file);
+    	if (http != null)
+    		http.download(url, file, 1);
     }
     
     /**
@@ -158,16 +286,63 @@ public class PhoneGap{
     
     public long getCurrentPositionAudio()
     {
-    	System.out.println(audio.getCurrentPosition());
     	return(audio.getCurrentPosition());
     }
     
     public long getDurationAudio(String file)
     {
-    	System.out.println(audio.getDuration(file));
     	return(audio.getDuration(file));
     }  
     
+    /*
+     * Tracks, for playing more than one sound at a time.  The ids are the page's own.
+     */
+    
+    public boolean preloadAudio(String id, String file)
+    {
+    	return audio.preload(id, file);
+    }
+    
+    public boolean playAudio(String id, String file)
+    {
+    	return audio.play(id, file);
+    }
+    
+    public void pauseAudio(String id)
+    {
+    	audio.pause(id);
+    }
+    
+    public void stopAudio(String id)
+    {
+    	audio.stop(id);
+    }
+    
+    public void releaseAudio(String id)
+    {
+    	audio.release(id);
+    }
+    
+    public void setAudioVolume(String id, float volume)
+    {
+    	audio.setVolume(id, volume);
+    }
+    
+    public void setAudioLooping(String id, boolean looping)
+    {
+    	audio.setLooping(id, looping);
+    }
+    
+    public long getAudioPosition(String id)
+    {
+    	return audio.getPosition(id);
+    }
+    
+    public String getAudioStats()
+    {
+    	return audio.getStats();
+    }
+    
     public void setAudioOutputDevice(int output){
     	audio.setAudioOutputDevice(output);
     }
@@ -177,27 +352,19 @@ public class PhoneGap{
     }
     
     public String getLine1Number() {
-        TelephonyManager tm =
-            (TelephonyManager)mCtx.getSystemService(Context.TELEPHONY_SERVICE);
-        return(tm.getLine1Number());
+        return getInfo().line1Number;
     }
     
     public String getVoiceMailNumber() {
-    	TelephonyManager tm =
-    		(TelephonyManager)mCtx.getSystemService(Context.TELEPHONY_SERVICE);
-        return(tm.getVoiceMailNumber());
+        return getInfo().voiceMailNumber;
     }
     
     public String getNetworkOperatorName(){
-    	TelephonyManager tm =
-    		(TelephonyManager)mCtx.getSystemService(Context.TELEPHONY_SERVICE);
-        return(tm.getNetworkOperatorName());
+        return getInfo().operatorName;
     }
     
     public String getSimCountryIso(){
-    	TelephonyManager tm =
-    		(TelephonyManager)mCtx.getSystemService(Context.TELEPHONY_SERVICE);
-        return(tm.getSimCountryIso());
+        return getInfo().simCountryIso;
     }
     
     public String getTimeZoneID() {
@@ -0,0 +1,366 @@
+package com.phonegap;
+/* License (MIT)
+ * Copyright (c) 2008 Nitobi
+ * website: http://phonegap.com
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * Software), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+/*
+ * This class owns the one and only SensorManager registration for PhoneGap.
+ *
+ * AccelListener, CompassListener, TempListener and Orientation subscribe to the sensor types
+ * they want.  Each type is registered once, at the fastest rate any subscriber asked for, and
+ * unregistered when its last subscriber stops.  Once per tick every subscriber gets to add its
+ * part to a single packet, which goes to the page as one message.
+ */
+
+public class SensorHub implements SensorEventListener {
+
+	private static final String LOG_TAG = "SensorHub";
+	private static final int MIN_TICK = 16;
+
+	/**
+	 * Implemented by anything that wants sensor data
+	 */
+	interface Subscriber
+	{
+		/**
+		 * Called for every reading of a subscribed type.  The values array belongs to the hub
+		 * and is reused, so copy anything that needs to be kept.
+		 */
+		void onSample(int type, long time, float[] values);
+
+		/**
+		 * Called once per tick.  Append Javascript statements for whatever is new since the
+		 * last tick, and return true if anything was appended.
+		 */
+		boolean appendPacket(StringBuilder packet);
+	}
+
+	/*
+	 * One entry for every subscriber to a sensor type
+	 */
+	private class Subscription
+	{
+		Subscriber subscriber;
+		int type;
+		int interval;
+
+		Subscription(Subscriber s, int t, int i)
+		{
+			subscriber = s;
+			type = t;
+			interval = i;
+		}
+	}
+
+	private SensorManager sensorManager;
+	private BridgeQueue mQueue;
+	private Handler mHandler;
+
+	private ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+	private ArrayList<Subscriber> tickList = new ArrayList<Subscriber>();
+
+	/*
+	 * Indexed by sensor type: what we registered, and at which rate
+	 */
+	private static final int MAX_TYPE = 16;
+	private Sensor[] sensors = new Sensor[MAX_TYPE];
+	private int[] delays = new int[MAX_TYPE];
+
+	/*
+	 * Shared between all subscribers, so nothing is allocated per reading
+	 */
+	private float[] values = new float[3];
+	private long lastTime = 0;
+
+	private int tick = 0;
+	private boolean ticking = false;
+	// The delay the ticker that's waiting to run was posted with
+	private int postedTick = 0;
+	private StringBuilder packet = new StringBuilder(256);
+
+	private long events = 0;
+	private long packets = 0;
+
+	private Runnable mTicker = new Runnable() {
+		public void run()
+		{
+			onTick();
+		}
+	};
+
+	SensorHub(Context ctx, BridgeQueue queue)
+	{
+		mQueue = queue;
+		mHandler = new Handler();
+		sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+		for (int i = 0; i < MAX_TYPE; i++)
+			delays[i] = -1;
+	}
+
+	/**
+	 * Start delivering readings of the given type to a subscriber.
+	 *
+	 * @param interval	how often, in milliseconds, the subscriber wants data
+	 * @return false if the device doesn't have that kind of sensor
+	 */
+	public synchronized boolean start(int type, Subscriber s, int interval)
+	{
+		if (type < 0 || type >= MAX_TYPE)
+			return false;
+		if (sensors[type] == null)
+		{
+			List<Sensor> list = sensorManager.getSensorList(type);
+			if (list == null || list.size() == 0)
+				return false;
+			sensors[type] = list.get(0);
+		}
+
+		Subscription sub = find(type, s);
+		if (sub == null)
+			subscriptions.add(new Subscription(s, type, interval));
+		else
+			sub.interval = interval;
+
+		updateRegistration(type);
+		updateTick();
+		return true;
+	}
+
+	/**
+	 * Stop delivering one type to a subscriber.  The sensor itself is only released when
+	 * nobody is left listening to it.
+	 */
+	public synchronized void stop(int type, Subscriber s)
+	{
+		Subscription sub = find(type, s);
+		if (sub == null)
+			return;
+		subscriptions.remove(sub);
+		updateRegistration(type);
+		updateTick();
+	}
+
+	/**
+	 * Send whatever a subscriber has right now, without waiting for the next tick.  Used
+	 * when a subscriber stops and still has data.
+	 */
+	public synchronized void flush(Subscriber s)
+	{
+		StringBuilder out = new StringBuilder();
+		if (s.appendPacket(out))
+		{
+			packets++;
+			mQueue.enqueue(out.toString());
+		}
+	}
+
+	/**
+	 * Drop every subscriber, release every sensor and stop ticking.  Called when the activity
+	 * goes away.
+	 */
+	public synchronized void destroy()
+	{
+		subscriptions.clear();
+		tickList.clear();
+		for (int type = 0; type < MAX_TYPE; type++)
+		{
+			if (delays[type] != -1)
+				sensorManager.unregisterListener(this, sensors[type]);
+			delays[type] = -1;
+		}
+		mHandler.removeCallbacks(mTicker);
+		tick = 0;
+		ticking = false;
+		postedTick = 0;
+	}
+
+	public synchronized boolean isRunning(int type, Subscriber s)
+	{
+		return find(type, s) != null;
+	}
+
+	public synchronized String getStats()
+	{
+		return "{\"subscriptions\":" + subscriptions.size() +
+			",\"tick\":" + tick +
+			",\"events\":" + events +
+			",\"packets\":" + packets + "}";
+	}
+
+	/*
+	 * Pick the hardware rate from the interval.  The nominal rates are roughly 0ms, 20ms,
+	 * 60ms and 200ms between events.
+	 */
+	static int getSensorDelay(int interval)
+	{
+		if (interval < 20)
+			return SensorManager.SENSOR_DELAY_FASTEST;
+		else if (interval < 60)
+			return SensorManager.SENSOR_DELAY_GAME;
+		else if (interval < 200)
+			return SensorManager.SENSOR_DELAY_UI;
+		else
+			return SensorManager.SENSOR_DELAY_NORMAL;
+	}
+
+	private Subscription find(int type, Subscriber s)
+	{
+		for (int i = 0; i < subscriptions.size(); i++)
+		{
+			Subscription sub = subscriptions.get(i);
+			if (sub.type == type && sub.subscriber == s)
+				return sub;
+		}
+		return null;
+	}
+
+	/*
+	 * Register, re-register or unregister a type to match what its subscribers want now.
+	 * The SENSOR_DELAY constants get smaller as they get faster.
+	 */
+	private void updateRegistration(int type)
+	{
+		int delay = -1;
+		for (int i = 0; i < subscriptions.size(); i++)
+		{
+			Subscription sub = subscriptions.get(i);
+			if (sub.type != type)
+				continue;
+			int d = getSensorDelay(sub.interval);
+			if (delay == -1 || d < delay)
+				delay = d;
+		}
+
+		if (delay == delays[type])
+			return;
+		if (delays[type] != -1)
+			sensorManager.unregisterListener(this, sensors[type]);
+		delays[type] = delay;
+		if (delay != -1)
+		{
+			if (!sensorManager.registerListener(this, sensors[type], delay))
+			{
+				Log.d(LOG_TAG, "Could not register sensor type " + type);
+				delays[type] = -1;
+			}
+		}
+	}
+
+	/*
+	 * Tick at the fastest rate anyone wants, and not at all when nobody is subscribed
+	 */
+	private void updateTick()
+	{
+		int interval = 0;
+		tickList.clear();
+		for (int i = 0; i < subscriptions.size(); i++)
+		{
+			Subscription sub = subscriptions.get(i);
+			if (interval == 0 || sub.interval < interval)
+				interval = sub.interval;
+			if (!tickList.contains(sub.subscriber))
+				tickList.add(sub.subscriber);
+		}
+		tick = interval == 0 ? 0 : Math.max(interval, MIN_TICK);
+
+		if (tick > 0 && !ticking)
+		{
+			ticking = true;
+			postedTick = tick;
+			mHandler.postDelayed(mTicker, tick);
+		}
+		else if (tick > 0 && tick < postedTick)
+		{
+			// A faster subscriber shouldn't wait out the slow tick that's already posted
+			mHandler.removeCallbacks(mTicker);
+			postedTick = tick;
+			mHandler.postDelayed(mTicker, tick);
+		}
+	}
+
+	private synchronized void onTick()
+	{
+		// updateTick may have posted another ticker while this one was on its way in
+		mHandler.removeCallbacks(mTicker);
+		if (tick == 0)
+		{
+			ticking = false;
+			postedTick = 0;
+			return;
+		}
+		packet.setLength(0);
+		boolean any = false;
+		for (int i = 0; i < tickList.size(); i++)
+		{
+			// Each subscriber on its own, so one page callback that throws doesn't lose the rest
+			int mark = packet.length();
+			packet.append("try{");
+			if (tickList.get(i).appendPacket(packet))
+			{
+				any = true;
+				packet.append("}catch(e){}");
+			}
+			else
+				packet.setLength(mark);
+		}
+		if (any)
+		{
+			packets++;
+			mQueue.enqueue(packet.toString());
+		}
+		postedTick = tick;
+		mHandler.postDelayed(mTicker, tick);
+	}
+
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+		// Nobody needs this yet
+
+	}
+
+	public void onSensorChanged(SensorEvent event) {
+		int type = event.sensor.getType();
+		synchronized (this)
+		{
+			events++;
+			lastTime = event.timestamp / 1000000;
+			int n = Math.min(event.values.length, values.length);
+			System.arraycopy(event.values, 0, values, 0, n);
+			for (int i = 0; i < subscriptions.size(); i++)
+			{
+				Subscription sub = subscriptions.get(i);
+				if (sub.type == type)
+					sub.subscriber.onSample(type, lastTime, values);
+			}
+		}
+	}
+}
@@ -1,53 +1,42 @@
 package com.phonegap;
 
-import java.util.List;
-
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.content.Context;
-import android.webkit.WebView;
 
-public class TempListener implements SensorEventListener {
-	WebView mAppView;
-	Context mCtx;
-	Sensor mSensor;	
-	
-	private SensorManager sensorManager;
+public class TempListener implements SensorHub.Subscriber {
+	SensorHub mHub;
+	int mTime = 1000;
+
+	private float temp;
+	private boolean fresh = false;
 	
-	TempListener(Context ctx, WebView appView)
+	TempListener(SensorHub hub)
 	{
-		mCtx = ctx;
-		mAppView = appView;		
-		sensorManager = (SensorManager) mCtx.getSystemService(Context.SENSOR_SERVICE);
+		mHub = hub;
 	}
 
 	public void start()
 	{
-		List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_TEMPERATURE);
-		if (list.size() > 0)
-		{
-			this.mSensor = list.get(0);
-			this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_NORMAL);
-		}
-		
+		mHub.start(Sensor.TYPE_TEMPERATURE, this, mTime);
 	}
 	
 	public void stop()
 	{
-		this.sensorManager.unregisterListener(this);
+		mHub.stop(Sensor.TYPE_TEMPERATURE, this);
+		fresh = false;
 	}
 	
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
-		
+	public void onSample(int type, long time, float[] values) {
+		// We want to know what temp this is.
+		temp = values[0];
+		fresh = true;
 	}
 
-	public void onSensorChanged(SensorEvent event) {
-		// We want to know what temp this is.
-		float temp = event.values[0];
-		mAppView.loadUrl("javascript:gotTemp(" + temp + ")");
+	public boolean appendPacket(StringBuilder packet) {
+		if (!fresh)
+			return false;
+		fresh = false;
+		packet.append("gotTemp(").append(temp).append(')');
+		return true;
 	}
 
-}
\ No newline at end of file
+}
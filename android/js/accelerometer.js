@@ -18,6 +18,25 @@ function gotAccel(x, y, z)
 	_accel.z = z;
 }
 
+/*
+ * Samples come from the native side in batches, as a flat [x, y, z, timestamp, ...] array.
+ * The newest one becomes the current acceleration, the whole batch is kept for anyone who
+ * wants full resolution.
+ */
+_accel.samples = [];
+
+function gotAccelBatch(samples)
+{
+	var n = samples.length;
+	if (n < 4)
+		return;
+	_accel.x = samples[n - 4];
+	_accel.y = samples[n - 3];
+	_accel.z = samples[n - 2];
+	_accel.timestamp = samples[n - 1];
+	_accel.samples = samples;
+}
+
 /**
  * This class provides access to device accelerometer data.
  * @constructor
@@ -42,9 +61,14 @@ Accelerometer.prototype.getCurrentAcceleration = function(successCallback, error
 	// If the acceleration is available then call success
 	// If the acceleration is not available then call error
 
+	// Pick up any readings that are still waiting on the native side
+	PhoneGap.drain();
+
 	// Created for iPhone, Iphone passes back _accel obj litteral
 	if (typeof successCallback == "function") {
 		var accel = new Acceleration(_accel.x,_accel.y,_accel.z);
+		accel.timestamp = _accel.timestamp;
+		accel.samples = _accel.samples;
 		Accelerometer.lastAcceleration = accel;
 		successCallback(accel);
 	}
@@ -57,14 +81,19 @@ Accelerometer.prototype.getCurrentAcceleration = function(successCallback, error
  * @param {Function} errorCallback The function to call when there is an error 
  * getting the acceleration data.
  * @param {AccelerationOptions} options The options for getting the accelerometer data
- * such as timeout.
+ * such as timeout.  Android also takes mode (Accelerometer.AVERAGE, DECIMATE or PEAK), which
+ * decides how readings inside one frequency interval are combined, and batch, the number of
+ * samples to collect before sending them over.
  */
 
 Accelerometer.prototype.watchAcceleration = function(successCallback, errorCallback, options) {
 	// TODO: add the interval id to a list so we can clear all watches
  	var frequency = (options != undefined)? options.frequency : 10000;
 	
-	Accel.start(frequency);
+	if (options != undefined && (options.mode != undefined || options.batch != undefined))
+		Accel.configure(options.mode != undefined ? options.mode : -1, options.batch || 0);
+	// Readings already waiting come back with the call
+	PhoneGap.invoke("Accel", "start", frequency);
 	return setInterval(function() {
 		navigator.accelerometer.getCurrentAcceleration(successCallback, errorCallback, options);
 	}, frequency);
@@ -79,6 +108,10 @@ Accelerometer.prototype.clearWatch = function(watchId) {
 	clearInterval(watchId);
 }
 
+Accelerometer.AVERAGE = 0;
+Accelerometer.DECIMATE = 1;
+Accelerometer.PEAK = 2;
+
 PhoneGap.addConstructor(function() {
     if (typeof navigator.accelerometer == "undefined") navigator.accelerometer = new Accelerometer();
 });
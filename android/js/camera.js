@@ -6,34 +6,75 @@ function Camera() {
 	
 }
 
+/**
+ * What getPicture hands to successCallback: a base64 encoded JPEG, or the file:// URI of the
+ * file it was saved to
+ */
+Camera.DestinationType = {
+  DATA_URL: 0,
+  FILE_URI: 1
+};
+
 /**
  * 
  * @param {Function} successCallback
  * @param {Function} errorCallback
- * @param {Object} options
+ * @param {Object} options quality (default 80), destinationType (default FILE_URI, base64
+ * only if it's asked for), targetWidth and targetHeight to scale the picture down to fit
+ * inside, keeping its shape, correctOrientation to turn it upright, burst for the number of
+ * pictures to take back to back, and onprogress(id, fraction) to follow each one along
+ *
+ * successCallback is called with (picture, id) once for every picture, errorCallback with
+ * (message, id) for each one that fails, or with just a message if none were taken
  */
 Camera.prototype.getPicture = function(successCallback, errorCallback, options) {
 
+  options = options || {};
   this.winCallback = successCallback;
   this.failCallback = errorCallback;
-  if (options.quality)
-  {
-    GapCam.takePicture(options.quality);
-  }
-  else 
-  {
-    GapCam.takePicture(80);
-  }
+  this.progressCallback = options.onprogress;
+  var destinationType = typeof(options.destinationType) == "number" ?
+    options.destinationType : Camera.DestinationType.FILE_URI;
+  GapCam.getPicture(options.quality || 80, destinationType,
+    options.targetWidth || 0, options.targetHeight || 0,
+    !!options.correctOrientation, options.burst || 1);
+}
+
+/**
+ * Stops working on a picture, or on every picture if no id is given
+ */
+Camera.prototype.cancel = function(id)
+{
+  if (typeof(id) == "number")
+    GapCam.cancel(id);
+  else
+    GapCam.cancelAll();
+}
+
+Camera.prototype.progress = function(id, fraction)
+{
+  if (this.progressCallback)
+    this.progressCallback(id, fraction);
+}
+
+Camera.prototype.pictureDone = function(id, ok, result)
+{
+  if (ok)
+    this.win(result, id);
+  else
+    this.fail(result, id);
 }
 
-Camera.prototype.win = function(picture)
+Camera.prototype.win = function(picture, id)
 {
-  this.winCallback(picture);
+  if (this.winCallback)
+    this.winCallback(picture, id);
 }
 
-Camera.prototype.fail = function(err)
+Camera.prototype.fail = function(err, id)
 {
-  this.failCallback(err);
+  if (this.failCallback)
+    this.failCallback(err, id);
 }
 
 PhoneGap.addConstructor(function() {
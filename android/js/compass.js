@@ -91,6 +91,27 @@ Compass.prototype.setError = function(message) {
     }
 };
 
+/**
+ * Cut down on heading updates before they leave the native side.
+ * @param {Object} options deadband: minimum change in degrees worth reporting,
+ * smoothing: Compass.SMOOTH_NONE, SMOOTH_LOW_PASS or SMOOTH_CIRCULAR_MEAN,
+ * alpha: how much of each new reading the low pass lets through (0 to 1),
+ * window: how many readings the circular mean averages over.
+ */
+Compass.prototype.setFilter = function(options) {
+	if (typeof(CompassHook) == 'undefined' || typeof(options) != 'object')
+		return;
+	if (options.deadband != undefined)
+		CompassHook.setDeadband(options.deadband);
+	if (options.smoothing != undefined || options.alpha != undefined || options.window != undefined)
+		CompassHook.setSmoothing(options.smoothing != undefined ? options.smoothing : -1,
+			options.alpha || 0, options.window || 0);
+};
+
+Compass.SMOOTH_NONE = 0;
+Compass.SMOOTH_LOW_PASS = 1;
+Compass.SMOOTH_CIRCULAR_MEAN = 2;
+
 PhoneGap.addConstructor(function() {
     if (typeof navigator.compass == "undefined") navigator.compass = new Compass();
 });
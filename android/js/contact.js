@@ -43,7 +43,32 @@ Contacts.prototype.find = function(obj, win, fail)
   this.fail = fail;
 }
 
-Contacts.prototype.droidFoundContact = function(name, npa, email)
+/**
+ * Type-ahead search, answered straight from the native contact index.  Falls back to find()
+ * while the index is still being built.
+ * @param {String} text Words that start words of the name, in any order
+ * @param {String} number Trailing digits of the phone number
+ * @param {Number} limit Most contacts to return
+ */
+Contacts.prototype.quickFind = function(text, number, limit, win, fail)
+{
+  var json = ContactHook.find(text || "", number || "", limit || 0);
+  if (json == null)
+  {
+    this.records = [];
+    this.win = win;
+    this.fail = fail;
+    ContactHook.searchPrefix(text || "", number || "");
+    return;
+  }
+  var found = eval(json);
+  var contacts = [];
+  for (var i = 0; i < found.length; i++)
+    contacts.push(this.toContact(found[i].name, found[i].phone, found[i].email));
+  win(contacts);
+}
+
+Contacts.prototype.toContact = function(name, npa, email)
 {
   var contact = new Contact();
   contact.name = new ContactName();
@@ -53,11 +78,16 @@ Contacts.prototype.droidFoundContact = function(name, npa, email)
   mail.types.push("home");
   mail.address = email;
   contact.emails.push(mail);
-  phone = new ContactPhoneNumber();
+  var phone = new ContactPhoneNumber();
   phone.types.push("home");
   phone.number = npa;
   contact.phones.push(phone);
-  this.records.push(contact);
+  return contact;
+}
+
+Contacts.prototype.droidFoundContact = function(name, npa, email)
+{
+  this.records.push(this.toContact(name, npa, email));
 }
 
 Contacts.prototype.droidDone = function()
@@ -65,6 +95,52 @@ Contacts.prototype.droidDone = function()
   this.win(this.records);
 }
 
+/**
+ * Read the address book a page at a time.  The first page is requested straight away, and
+ * each later one when the returned next() is called.  The native cursor is closed after the
+ * last page, or when close() is called.
+ * @param {String[]} fields Any of "id", "name", "phone" and "email", or null for all of them
+ * @param {Number} limit How many contacts to deliver per page
+ * @param {Function} win Called with (contacts, more) for every page
+ * @param {Function} fail Called if the address book could not be read
+ */
+Contacts.prototype.getPage = function(fields, limit, win, fail)
+{
+  var id = ContactHook.openContacts(fields ? fields.join(",") : "");
+  if (id < 0)
+  {
+    if (fail) fail();
+    return null;
+  }
+  this.pages = this.pages || {};
+  this.pages[id] = { win: win, fail: fail };
+  var pager = {
+    next: function() { ContactHook.getPage(id, -1, limit); },
+    close: function() { delete navigator.Contacts.pages[id]; ContactHook.closeContacts(id); }
+  };
+  pager.next();
+  return pager;
+}
+
+Contacts.prototype.droidGotPage = function(id, offset, contacts, more)
+{
+  var page = this.pages && this.pages[id];
+  if (!page)
+    return;
+  if (!more)
+    delete this.pages[id];
+  page.win(contacts, more);
+}
+
+Contacts.prototype.droidPageFailed = function(id)
+{
+  var page = this.pages && this.pages[id];
+  if (!page)
+    return;
+  delete this.pages[id];
+  if (page.fail) page.fail();
+}
+
 PhoneGap.addConstructor(function() {
   if(typeof navigator.Contacts == "undefined") navigator.Contacts = new Contacts();
 });
@@ -12,12 +12,20 @@ function Device() {
     this.uuid     = null;
     try {
         if (window.DroidGap) {
+            // Everything in one call, the native side has it all ready
+            var info = eval("(" + window.DroidGap.getDeviceInfo() + ")");
             this.available = true;
-            this.uuid = window.DroidGap.getUuid();
-            this.version = window.DroidGap.getOSVersion();
-            this.gapVersion = window.DroidGap.getVersion();
-            this.platform = window.DroidGap.getPlatform();
-            this.name = window.DroidGap.getProductName();  
+            this.uuid = info.uuid;
+            this.version = info.version;
+            this.gapVersion = info.gapVersion;
+            this.platform = info.platform;
+            this.name = info.name;
+            this.model = info.model;
+            this.sdkVersion = info.sdkVersion;
+            this.line1Number = info.line1Number;
+            this.voiceMailNumber = info.voiceMailNumber;
+            this.networkOperatorName = info.networkOperatorName;
+            this.simCountryIso = info.simCountryIso;
         } 
     } catch(e) {
         this.available = false;
@@ -44,20 +44,163 @@ File.prototype.read = function(fileName, successCallback, errorCallback) {
 
 File.prototype.hasRead = function(data)
 {
-  if(data.substr("FAIL"))
+  if(data.indexOf("FAIL") == 0)
     this.failCallback(data);
   else
     this.winCallback(data);
 }
 
+/**
+ * Reads a file, or part of it, a chunk at a time.  Each chunk is handed over as soon as it
+ * has been decoded, so a big file never has to be held in memory as one string.
+ * @param {String} fileName The name (including the path) of the file
+ * @param {Object} options encoding (default "UTF-8"), offset and length in bytes, and
+ * chunkSize in characters
+ * @param {Function} chunkCallback Called with (data, position, done) for every chunk
+ * @param {Function} errorCallback Called with a message if the file can't be read
+ * @return {Number} an id that can be passed to abortRead()
+ */
+File.prototype.readChunks = function(fileName, options, chunkCallback, errorCallback)
+{
+  options = options || {};
+  var offset = options.offset || 0;
+  var length = typeof(options.length) == "number" ? options.length : -1;
+  var id = FileUtil.readChunks(fileName, options.encoding || "", offset, length, options.chunkSize || 0);
+  this.reads = this.reads || {};
+  this.reads[id] = { win: chunkCallback, fail: errorCallback };
+  return id;
+}
+
+File.prototype.abortRead = function(id)
+{
+  if (this.reads)
+    delete this.reads[id];
+  FileUtil.abortRead(id);
+}
+
+File.prototype.gotChunk = function(id, data, position, done)
+{
+  var read = this.reads && this.reads[id];
+  if (done && read)
+    delete this.reads[id];
+  try {
+    if (read)
+      read.win(data, position, done);
+  }
+  finally {
+    // Let the reader send the next one
+    FileUtil.ackChunk(id);
+  }
+}
+
+File.prototype.chunkFailed = function(id, message)
+{
+  var read = this.reads && this.reads[id];
+  if (!read)
+    return;
+  delete this.reads[id];
+  if (read.fail)
+    read.fail(message);
+}
+
+/**
+ * Opens a file for random access.  Ranges are read and written as base64 strings.
+ * @param {String} fileName The name (including the path) of the file
+ * @param {String} mode "r" to read, "rw" to read and write
+ * @return {FileHandle} the open file, or null if it couldn't be opened
+ */
+File.prototype.open = function(fileName, mode)
+{
+  var handle = FileUtil.open(fileName, mode || "r");
+  return handle < 0 ? null : new FileHandle(handle);
+}
+
+/**
+ * Reads length bytes at offset without keeping the file open.
+ * @return {String} base64 data, "" past the end of the file, or null on error
+ */
+File.prototype.readRange = function(fileName, offset, length)
+{
+  return FileUtil.readRange(fileName, offset, length);
+}
+
+/**
+ * Writes base64 data at offset without keeping the file open.
+ * @return {Number} bytes written, or -1 on error
+ */
+File.prototype.writeAt = function(fileName, offset, data)
+{
+  return FileUtil.writeAt(fileName, offset, data);
+}
+
+function FileHandle(handle) {
+  this.handle = handle;
+}
+
+FileHandle.prototype.read = function(offset, length)
+{
+  return FileUtil.readHandle(this.handle, offset, length);
+}
+
+FileHandle.prototype.write = function(offset, data)
+{
+  return FileUtil.writeHandle(this.handle, offset, data);
+}
+
+FileHandle.prototype.size = function()
+{
+  return FileUtil.getSize(this.handle);
+}
+
+FileHandle.prototype.close = function()
+{
+  FileUtil.close(this.handle);
+}
+
 /**
  * Writes a file to the mobile device.
  * @param {File} file The file to write to the device.
  */
 File.prototype.write = function(file, str, mode, successCallback, failCallback) {
-  this.winCallback = successCallback;
-  this.failCallback = failCallback;
-  var call = FileUtil.write(file, str, mode);
+  var id = FileUtil.write(file, str, !!mode);
+  this.writes = this.writes || {};
+  if (successCallback || failCallback)
+    this.writes[id] = { win: successCallback, fail: failCallback };
+  return id;
+}
+
+/**
+ * Closes a file the background writer is holding open for appends.
+ */
+File.prototype.closeWriter = function(file) {
+  FileUtil.closeWriter(file);
+}
+
+File.SYNC_NONE = 0;
+File.SYNC_ON_CLOSE = 1;
+File.SYNC_INTERVAL = 2;
+
+/**
+ * Chooses when written data is forced to disk.
+ * @param {Number} policy File.SYNC_NONE, File.SYNC_ON_CLOSE or File.SYNC_INTERVAL
+ * @param {Number} interval For SYNC_INTERVAL, milliseconds between syncs
+ */
+File.prototype.setSyncPolicy = function(policy, interval) {
+  FileUtil.setSyncPolicy(policy, interval || 0);
+}
+
+File.prototype.writesDone = function(done, failed) {
+  var i, w;
+  for (i = 0; i < done.length; i++) {
+    w = this.writes[done[i]];
+    delete this.writes[done[i]];
+    if (w && w.win) w.win('File written');
+  }
+  for (i = 0; i < failed.length; i++) {
+    w = this.writes[failed[i]];
+    delete this.writes[failed[i]];
+    if (w && w.fail) w.fail('Fail');
+  }
 }
 
 File.prototype.testFileExists = function(file, successCallback, failCallback)
@@ -107,3 +250,74 @@ File.prototype.getFreeDiskSpace = function(successCallback, failCallback)
     failCallback();
   return diskSpace;
 }
+
+/**
+ * Whole-tree operations.  Paths are relative to the SD card.  Each one runs in the background
+ * and returns a job id that can be passed to cancelTree, or -1 if it couldn't start.
+ * @param {Object} callbacks Any of onprogress(files, dirs, bytes), onentries(entries),
+ * onsuccess(result) and onerror(message)
+ */
+File.prototype.deleteTree = function(path, callbacks)
+{
+  return this._treeJob(FileUtil.deleteTree(path), callbacks);
+}
+
+File.prototype.copyTree = function(from, to, callbacks)
+{
+  return this._treeJob(FileUtil.copyTree(from, to), callbacks);
+}
+
+File.prototype.moveTree = function(from, to, callbacks)
+{
+  return this._treeJob(FileUtil.moveTree(from, to), callbacks);
+}
+
+File.prototype.listTree = function(path, recursive, callbacks)
+{
+  return this._treeJob(FileUtil.listTree(path, !!recursive), callbacks);
+}
+
+File.prototype.diskUsage = function(path, callbacks)
+{
+  return this._treeJob(FileUtil.diskUsage(path), callbacks);
+}
+
+File.prototype.cancelTree = function(id)
+{
+  FileUtil.cancelTree(id);
+}
+
+File.prototype._treeJob = function(id, callbacks)
+{
+  callbacks = callbacks || {};
+  if (id < 0)
+  {
+    if (callbacks.onerror) callbacks.onerror("Could not start");
+    return id;
+  }
+  this.trees = this.trees || {};
+  this.trees[id] = callbacks;
+  return id;
+}
+
+File.prototype.treeProgress = function(id, files, dirs, bytes)
+{
+  var job = this.trees && this.trees[id];
+  if (job && job.onprogress) job.onprogress(files, dirs, bytes);
+}
+
+File.prototype.treeEntries = function(id, entries)
+{
+  var job = this.trees && this.trees[id];
+  if (job && job.onentries) job.onentries(entries);
+}
+
+File.prototype.treeDone = function(id, ok, result)
+{
+  var job = this.trees && this.trees[id];
+  if (!job)
+    return;
+  delete this.trees[id];
+  if (ok && job.onsuccess) job.onsuccess(result);
+  else if (!ok && job.onerror) job.onerror(result);
+}
@@ -123,9 +123,23 @@ PhoneGap.addConstructor(function() {
  
 Geolocation.prototype.getCurrentPosition = function(successCallback, errorCallback, options)
 {
-  var position = Geo.getCurrentLocation();
   this.global_success = successCallback;
   this.fail = errorCallback;
+
+  // A cached fix up to maximumAge ms old comes straight back without starting the GPS
+  var maximumAge = 0;
+  var timeout = -1;
+  var enableHighAccuracy = true;
+  if (typeof(options) == 'object')
+  {
+    if (options.maximumAge != undefined)
+      maximumAge = options.maximumAge;
+    if (options.timeout != undefined)
+      timeout = options.timeout;
+    if (options.enableHighAccuracy != undefined)
+      enableHighAccuracy = options.enableHighAccuracy;
+  }
+  Geo.getCurrentLocation(maximumAge, timeout, enableHighAccuracy);
 }
  
  
@@ -159,10 +173,21 @@ Geolocation.prototype.watchPosition = function(successCallback, errorCallback, o
       this.listeners = [];
   }
  
-  var key = this.listeners.push( {"success" : successCallback, "fail" : failCallback }) - 1;
+  var key = this.listeners.push( {"success" : successCallback, "fail" : errorCallback }) - 1;
  
+  // Once a GPS fix is within desiredAccuracy meters, the GPS rests until the next interval
+  var enableHighAccuracy = true;
+  var desiredAccuracy = 0;
+  if (options != undefined)
+  {
+    if (options.enableHighAccuracy != undefined)
+      enableHighAccuracy = options.enableHighAccuracy;
+    if (options.desiredAccuracy != undefined)
+      desiredAccuracy = options.desiredAccuracy;
+  }
+
   // TO-DO: Get the names of the method and pass them as strings to the Java.
-  return Geolocation.start(frequency, key);
+  return Geo.watch(frequency, String(key), enableHighAccuracy, desiredAccuracy);
 }
  
 /*
@@ -6,8 +6,14 @@ function Media(src, successCallback, errorCallback) {
 	this.src = src;
 	this.successCallback = successCallback;
 	this.errorCallback = errorCallback;												
+	// Every Media plays on a track of its own, so several can play at once
+	this.id = "media" + Media.nextId++;
 }
 
+Media.nextId = 1;
+// Only the Media with a track loaded natively, so the rest can be garbage collected
+Media.tracks = {};
+
 Media.prototype.record = function() {
 }
 
@@ -43,12 +49,94 @@ MediaError.MEDIA_ERR_NONE_SUPPORTED = 4;
  * @constructor
  */
 
+/**
+ * Loads the sound ahead of time, so play() starts it straight away
+ */
+Media.prototype.preload = function() {
+  Media.tracks[this.id] = this;
+  DroidGap.preloadAudio(this.id, this.src);
+}
+
+/**
+ * Plays the sound, or starts it again from the beginning if it's already playing
+ */
 Media.prototype.play = function() {
-  DroidGap.startPlayingAudio(this.src);  
+  Media.tracks[this.id] = this;
+  if (!DroidGap.playAudio(this.id, this.src)) {
+    delete Media.tracks[this.id];
+    this.error(MediaError.MEDIA_ERR_ABORTED, "Could not load " + this.src);
+  }
 }
 
+Media.prototype.pause = function() {
+  DroidGap.pauseAudio(this.id);
+}
+
+/**
+ * Stops the sound and goes back to the beginning.  It stays loaded until release().
+ */
 Media.prototype.stop = function() {
-  DroidGap.stopPlayingAudio();
+  DroidGap.stopAudio(this.id);
+}
+
+Media.prototype.release = function() {
+  DroidGap.releaseAudio(this.id);
+  delete Media.tracks[this.id];
+}
+
+/**
+ * @param {Number} volume from 0 to 1
+ */
+Media.prototype.setVolume = function(volume) {
+  DroidGap.setAudioVolume(this.id, volume);
+}
+
+Media.prototype.setLooping = function(looping) {
+  DroidGap.setAudioLooping(this.id, !!looping);
+}
+
+/**
+ * @return {Number} where the sound is up to in milliseconds, or -1 if it isn't playing
+ */
+Media.prototype.getCurrentPosition = function() {
+  return DroidGap.getAudioPosition(this.id);
+}
+
+/**
+ * @return {Number} the length of the sound in milliseconds, or -1 if it isn't known yet
+ */
+Media.prototype.getDuration = function() {
+  return this.duration || DroidGap.getDurationAudio(this.src);
+}
+
+Media.prototype.error = function(code, message) {
+  if (this.errorCallback) {
+    var err = new MediaError();
+    err.code = code;
+    err.message = message;
+    this.errorCallback(err);
+  }
+}
+
+/**
+ * Called by the native side when a track is prepared (value is its length), ends, fails
+ * (value is the MediaPlayer error) or is evicted.  A failed or evicted track is gone on the
+ * native side, so it's dropped here too; play() loads it again.
+ */
+Media.onStatus = function(id, status, value) {
+  var media = Media.tracks[id];
+  if (!media)
+    return;
+  if (status == "prepared")
+    media.duration = value;
+  else if (status == "ended" && media.successCallback)
+    media.successCallback();
+  else if (status == "error") {
+    delete Media.tracks[id];
+    media.error(MediaError.MEDIA_ERR_DECODE, "Error " + value + " playing " + media.src);
+  }
+  else if (status == "evicted")
+    delete Media.tracks[id];
 }
 
 Media.prototype.startRecord = function() {
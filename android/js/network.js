@@ -39,17 +39,55 @@ Network.prototype.isReachable = function(hostName, successCallback, options) {
  */
 Network.prototype.updateReachability = function(reachability) {
     this.lastReachability = reachability;
+    var watchers = this.watchers && this.watchers[reachability.hostName];
+    if (watchers) {
+        for (var i = 0; i < watchers.length; i++)
+            watchers[i](reachability);
+    }
+};
+
+/**
+ * Called by the native side whenever the active network changes.
+ * @param {Object} connection connected, type ("none", "wifi", "mobile" or "other"), subtype,
+ * metered and roaming
+ */
+Network.prototype.connectionChanged = function(connection) {
+    this.connection = connection;
+    var listeners = this.connectionListeners || [];
+    for (var i = 0; i < listeners.length; i++)
+        listeners[i](connection);
+};
+
+/**
+ * Calls back with the new connection every time it changes, instead of polling for it.  The
+ * current one is always in navigator.network.connection.
+ */
+Network.prototype.addConnectionListener = function(callback) {
+    this.connectionListeners = this.connectionListeners || [];
+    this.connectionListeners.push(callback);
+};
+
+Network.prototype.removeConnectionListener = function(callback) {
+    var listeners = this.connectionListeners || [];
+    for (var i = 0; i < listeners.length; i++) {
+        if (listeners[i] == callback) {
+            listeners.splice(i, 1);
+            return;
+        }
+    }
 };
 
 PhoneGap.addConstructor(function() {
     if (typeof navigator.network == "undefined") navigator.network = new Network();
+    if (typeof NetworkManager != "undefined")
+        navigator.network.connection = eval("(" + NetworkManager.getNetworkState() + ")");
 });
 Network.prototype.isReachable = function(uri, win, options)
 {
   var status = new NetworkStatus();
   if(NetworkManager.isReachable(uri))
   {
-    if (NetworkManager.isWifiActive)
+    if (NetworkManager.isWifiActive())
       status.code = 2;
     else
       status.code = 1;
@@ -58,3 +96,71 @@ Network.prototype.isReachable = function(uri, win, options)
       status.code = 0;
   win(status);
 }
+
+/**
+ * Calls back with the reachability of a host whenever connectivity changes its answer, and
+ * once straight away.  Probes are cached natively, so this is cheap to call often.
+ * @param {String} uri The host to watch
+ * @param {Function} callback Called with an object in the shape of lastReachability
+ * @param {Object} options head: probe with an HTTP HEAD instead of a TCP connect
+ */
+Network.prototype.watchReachability = function(uri, callback, options)
+{
+  var head = !!(options && options.head);
+  this.watchers = this.watchers || {};
+  if (!this.watchers[uri])
+    this.watchers[uri] = [];
+  this.watchers[uri].push(callback);
+  NetworkManager.watchReachability(uri, head);
+  NetworkManager.checkReachability(uri, head);
+}
+
+Network.prototype.clearReachability = function(uri)
+{
+  if (this.watchers)
+    delete this.watchers[uri];
+  NetworkManager.clearReachability(uri);
+}
+
+/**
+ * Downloads a file to the SD card in the background.  Interrupted downloads resume where they
+ * stopped, and big files are fetched in parallel segments when the server allows it.
+ * @param {String} url The file to fetch
+ * @param {String} file Where to save it, relative to the SD card
+ * @param {Object} options segments (how many parallel ranges, default 1)
+ * @param {Function} win Called when the file is complete
+ * @param {Function} fail Called with a message if it failed or was cancelled
+ * @param {Function} progress Called with (loaded, total) every so often; total is -1 if unknown
+ * @return {Number} an id for cancelDownload
+ */
+Network.prototype.download = function(url, file, options, win, fail, progress)
+{
+  var id = GapHttp.download(url, file, (options && options.segments) || 1);
+  this.downloads = this.downloads || {};
+  this.downloads[id] = { win: win, fail: fail, progress: progress };
+  return id;
+}
+
+Network.prototype.cancelDownload = function(id)
+{
+  GapHttp.cancel(id);
+}
+
+Network.prototype.downloadProgress = function(id, loaded, total)
+{
+  var d = this.downloads && this.downloads[id];
+  if (d && d.progress)
+    d.progress(loaded, total);
+}
+
+Network.prototype.downloadDone = function(id, ok, message)
+{
+  var d = this.downloads && this.downloads[id];
+  if (!d)
+    return;
+  delete this.downloads[id];
+  if (ok && d.win)
+    d.win();
+  else if (!ok && d.fail)
+    d.fail(message);
+}